@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Measures how many connections per second the CentralServer accepts during a connection storm,
+ * with a single accept loop and with several SO_REUSEPORT acceptor shards.
+ *
+ * Both runs get the same total number of connection handling threads, so only the accept loops differ.
+ * The servers keep their results, uploads and usage ledger in a temporary directory, so the benchmark
+ * does not touch the data of a server running in the working directory.
+ *
+ * Accepted connections still have to be picked up by the handler pools, which hold their sockets
+ * until then, so long runs can exhaust the open file limit.
+ *
+ * Usage: java AcceptBenchmark [shards] [clients] [seconds] [port]
+ */
+public class AcceptBenchmark {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int shards = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 18080;
+
+        Path data = Files.createTempDirectory("accept-benchmark");
+        System.setProperty("faas.results.dir", data.resolve("results").toString());
+        System.setProperty("faas.uploads.dir", data.resolve("uploads").toString());
+        System.setProperty("faas.usage.dir", data.resolve("usage").toString());
+        System.setProperty("faas.handlerThreads", String.valueOf(10 * shards));
+
+        System.out.println("clients: " + clients + ", duration: " + seconds + "s, handler threads: " + 10 * shards);
+        run(1, clients, seconds, port);
+        run(shards, clients, seconds, port + 1);
+
+        try (Stream<Path> files = Files.walk(data)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private static void run(int shards, int clients, int seconds, int port) throws IOException, InterruptedException {
+        CentralServer server = new CentralServer(port, new InProcessBackend(), shards);
+        Thread serverThread = new Thread(server::start, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            threads[i] = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    try (Socket socket = new Socket("localhost", port)) {
+                        // Reset instead of a normal close, so the storm does not exhaust ephemeral ports.
+                        socket.setSoLinger(true, 0);
+                    } catch (IOException e) {
+                        // A refused connection is simply not counted.
+                    }
+                }
+            });
+        }
+
+        long before = server.getAcceptedConnections();
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long accepted = server.getAcceptedConnections() - before;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        // Waits for the handlers to close the connections of this run before the next one starts.
+        server.shutdown();
+        System.out.printf("%2d acceptor(s): %12.1f connections/s%n", shards, accepted / elapsed);
+    }
+}
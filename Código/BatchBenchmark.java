@@ -0,0 +1,158 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Measures the throughput of tiny jobs submitted with EXECUTE_TASK (validation round trip, admission and
+ * result written separately) and with EXECUTE_SMALL (one round trip, micro-batched, one coalesced write),
+ * against a server whose jobs return their input (EchoBackend), so only the server overhead is measured.
+ * With a pipeline depth above 1, each EXECUTE_SMALL client keeps that many requests in flight.
+ * Each acceptor serves 10 connections at a time, so use more acceptors (-Dfaas.acceptors) for more clients.
+ *
+ * Echoed jobs take microseconds, while a real JobFunction takes seconds. Give each job a fixed execution time
+ * to see how the server treats slow jobs: once EXECUTE_TASK has shown them to take longer than
+ * faas.batch.maxJobMillis, EXECUTE_SMALL answers TOO_SLOW instead of batching them, which is counted apart.
+ * The server keeps its results, uploads and usage ledger in a temporary directory.
+ *
+ * Usage: java BatchBenchmark [clients] [seconds] [taskSize] [pipelineDepth] [port] [jobMillis]
+ */
+public class BatchBenchmark {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int taskSize = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int depth = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 18090;
+        long jobMillis = args.length > 5 ? Long.parseLong(args[5]) : 0;
+
+        Path data = Files.createTempDirectory("batch-benchmark");
+        System.setProperty("faas.results.dir", data.resolve("results").toString());
+        System.setProperty("faas.uploads.dir", data.resolve("uploads").toString());
+        System.setProperty("faas.usage.dir", data.resolve("usage").toString());
+        System.setProperty("faas.limit.requestsPerSecond", "0");
+        CentralServer server = new CentralServer(port, new EchoBackend(jobMillis));
+        Thread serverThread = new Thread(server::start, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        Client registration = new Client("localhost", port);
+        registration.register("benchmark", "benchmark");
+        registration.logout();
+
+        System.out.println("clients: " + clients + ", task size: " + taskSize + " bytes, job time: " + jobMillis
+                + " ms, duration: " + seconds + "s");
+        run("EXECUTE_TASK", clients, seconds, taskSize, 1, port);
+        run("EXECUTE_SMALL", clients, seconds, taskSize, 1, port);
+        run("EXECUTE_SMALL", clients, seconds, taskSize, depth, port);
+        server.shutdown();
+
+        try (Stream<Path> files = Files.walk(data)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private static void run(String requestType, int clients, int seconds, int taskSize, int depth, int port) throws IOException, InterruptedException {
+        byte[] task = new byte[taskSize];
+        LongAdder jobs = new LongAdder();
+        LongAdder notBatched = new LongAdder();
+        Socket[] sockets = new Socket[clients];
+        for (int i = 0; i < clients; i++) {
+            sockets[i] = login(port);
+        }
+
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            Socket socket = sockets[i];
+            threads[i] = new Thread(() -> {
+                try {
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    while (System.nanoTime() < deadline) {
+                        if (requestType.equals("EXECUTE_TASK")) {
+                            executeTask(out, in, task);
+                            jobs.increment();
+                        } else {
+                            int executed = executeSmall(out, in, task, depth);
+                            jobs.add(executed);
+                            notBatched.add(depth - executed);
+                        }
+                    }
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%-14s depth %2d: %12.1f jobs/s, %d not batched%n", requestType, depth, jobs.sum() / elapsed, notBatched.sum());
+    }
+
+    private static Socket login(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        out.writeUTF("LOGIN");
+        out.writeUTF("benchmark");
+        out.writeUTF("benchmark");
+        out.flush();
+        if (!in.readUTF().equals("LOGIN_SUCCESS")) throw new IOException("Login failed");
+        return socket;
+    }
+
+    private static void executeTask(DataOutputStream out, DataInputStream in, byte[] task) throws IOException {
+        out.writeUTF("EXECUTE_TASK");
+        out.flush();
+        expect(in.readUTF(), "VALID");
+        out.writeInt(task.length);
+        out.write(task);
+        out.flush();
+        expect(in.readUTF(), "ADMITTED");
+        in.readFully(new byte[in.readInt()]);
+    }
+
+    /**
+     * Sends a pipeline of EXECUTE_SMALL requests and reads their answers.
+     *
+     * @return how many of the jobs were executed, the others being answered TOO_SLOW
+     */
+    private static int executeSmall(DataOutputStream out, DataInputStream in, byte[] task, int depth) throws IOException {
+        for (int i = 0; i < depth; i++) {
+            out.writeUTF("EXECUTE_SMALL");
+            out.writeInt(task.length);
+            out.write(task);
+        }
+        out.flush();
+        int executed = 0;
+        for (int i = 0; i < depth; i++) {
+            String answer = in.readUTF();
+            if (answer.equals("TOO_SLOW")) continue;
+            expect(answer, "ADMITTED");
+            in.readFully(new byte[in.readInt()]);
+            executed++;
+        }
+        return executed;
+    }
+
+    private static void expect(String answer, String expected) throws IOException {
+        if (!answer.equals(expected)) throw new IOException("Expected " + expected + " but got " + answer);
+    }
+}
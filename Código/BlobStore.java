@@ -0,0 +1,248 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+/**
+ * Keeps the inputs of recent tasks by their owner and SHA-256 hash, so that clients resubmitting the same task
+ * only send its hash (the server answers HAVE) instead of the whole payload (NEED).
+ *
+ * Blobs are only shared by the tasks of the user who uploaded them: a user cannot learn whether another user
+ * submitted some input, nor run another user's input by knowing its hash.
+ *
+ * The store is bounded by its total size, and the stored bytes are charged to the server's memory budget
+ * through the given callbacks. Each blob counts the jobs that are using it, and only blobs no job is using
+ * can be evicted, least recently used first. A task that does not fit is still run, it is just not kept.
+ */
+public class BlobStore {
+    public static final int HASH_SIZE = 32;
+
+    private final long maxBytes;
+    private final LongPredicate reserveMemory;
+    private final LongConsumer releaseMemory;
+    private long storedBytes = 0;
+    private final Map<BlobKey, StoredBlob> blobs = new LinkedHashMap<>(16, 0.75f, true);
+    private final Lock storeLock = new ReentrantLock();
+
+    /**
+     * Creates an empty store.
+     *
+     * @param maxBytes the maximum total size of the stored blobs
+     * @param reserveMemory charges the size of a blob to the memory budget, returning false if it is exhausted
+     * @param releaseMemory gives the size of an evicted blob back to the memory budget
+     */
+    public BlobStore(long maxBytes, LongPredicate reserveMemory, LongConsumer releaseMemory) {
+        this.maxBytes = maxBytes;
+        this.reserveMemory = reserveMemory;
+        this.releaseMemory = releaseMemory;
+    }
+
+    /**
+     * Computes the hash blobs are stored by.
+     *
+     * @param data the contents of the blob
+     * @return the SHA-256 hash of the data
+     */
+    public static byte[] hash(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Looks up a blob and, if it is stored, protects it from eviction until the returned handle is released.
+     *
+     * @param user the user the blob was uploaded by
+     * @param hash the SHA-256 hash of the blob
+     * @return a handle to the blob, or null if this user has no such blob stored
+     */
+    public Blob acquire(String user, byte[] hash) {
+        storeLock.lock();
+        try {
+            StoredBlob stored = blobs.get(new BlobKey(user, ByteBuffer.wrap(hash)));
+            if (stored == null) return null;
+            stored.references++;
+            return new Blob(this, stored, stored.data);
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Stores a blob that was just uploaded, evicting unused blobs to make room for it if needed.
+     * The blob is protected from eviction until the returned handle is released.
+     *
+     * @param user the user who uploaded the blob
+     * @param hash the SHA-256 hash of the data, already verified by the caller
+     * @param data the contents of the blob
+     * @return a handle to the blob, which is not kept in the store if it did not fit
+     */
+    public Blob store(String user, byte[] hash, byte[] data) {
+        BlobKey key = new BlobKey(user, ByteBuffer.wrap(hash.clone()));
+
+        storeLock.lock();
+        try {
+            StoredBlob stored = blobs.get(key);
+            if (stored == null) {
+                if (!makeRoom(data.length) || !reserveMemory.test(data.length)) return new Blob(null, null, data);
+
+                stored = new StoredBlob(data);
+                blobs.put(key, stored);
+                storedBytes += data.length;
+            }
+            stored.references++;
+            return new Blob(this, stored, data);
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total size of the stored blobs.
+     */
+    public long getStoredBytes() {
+        storeLock.lock();
+        try {
+            return storedBytes;
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Evicts unused blobs, least recently used first, to give their memory back to jobs.
+     *
+     * @param size how many bytes to free
+     * @return how many bytes were freed, which is less than asked if too many blobs are in use
+     */
+    public long evict(long size) {
+        storeLock.lock();
+        try {
+            long before = storedBytes;
+            evictUntil(Math.max(0, storedBytes - size));
+            return before - storedBytes;
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Evicts unused blobs, least recently used first, until the given size fits. Must hold storeLock.
+     *
+     * @return true if there is room for the given size, false if it does not fit even after evicting
+     */
+    private boolean makeRoom(long size) {
+        if (size > maxBytes) return false;
+
+        evictUntil(maxBytes - size);
+        return storedBytes + size <= maxBytes;
+    }
+
+    /**
+     * Evicts unused blobs, least recently used first, until at most the given size is stored. Must hold storeLock.
+     */
+    private void evictUntil(long size) {
+        Iterator<StoredBlob> iterator = blobs.values().iterator();
+        while (storedBytes > size && iterator.hasNext()) {
+            StoredBlob stored = iterator.next();
+            if (stored.references > 0) continue;
+
+            iterator.remove();
+            storedBytes -= stored.data.length;
+            releaseMemory.accept(stored.data.length);
+        }
+    }
+
+    private void release(StoredBlob stored) {
+        storeLock.lock();
+        try {
+            stored.references--;
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * The owner and hash a blob is stored by.
+     */
+    private static class BlobKey {
+        private final String user;
+        private final ByteBuffer hash;
+
+        BlobKey(String user, ByteBuffer hash) {
+            this.user = user;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof BlobKey)) return false;
+            BlobKey key = (BlobKey) other;
+            return user.equals(key.user) && hash.equals(key.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * user.hashCode() + hash.hashCode();
+        }
+    }
+
+    /**
+     * A stored blob and the number of jobs using it.
+     */
+    private static class StoredBlob {
+        private final byte[] data;
+        private int references = 0;
+
+        StoredBlob(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * A task input in use by a job. The job releases it once it is done with the data.
+     */
+    public static class Blob {
+        private final BlobStore store;
+        private final StoredBlob stored;
+        private final byte[] data;
+        private boolean released = false;
+
+        private Blob(BlobStore store, StoredBlob stored, byte[] data) {
+            this.store = store;
+            this.stored = stored;
+            this.data = data;
+        }
+
+        /**
+         * Wraps a task that was sent without negotiation and is not stored.
+         */
+        public static Blob unstored(byte[] data) {
+            return new Blob(null, null, data);
+        }
+
+        /**
+         * Returns the contents of the blob.
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * Lets the blob be evicted again. Calling it more than once is harmless.
+         */
+        public void release() {
+            if (released) return;
+            released = true;
+            if (store != null) store.release(stored);
+        }
+    }
+}
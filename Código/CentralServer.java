@@ -1,14 +1,38 @@
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 
-import sd23.JobFunction;
 import sd23.JobFunctionException;
 
 /**
@@ -16,46 +40,528 @@ import sd23.JobFunctionException;
  * It manages user registration, login, task execution, and status queries.
  */
 public class CentralServer {
-    private ServerSocket serverSocket;
-    private ThreadExecutor executorService;
+    private List<AcceptorShard> acceptorShards = new ArrayList<>();
+    private LongAdder acceptedConnections = new LongAdder();
+    private Set<ClientHandler> openConnections = ConcurrentHashMap.newKeySet();
+    private ExecutionBackend executionBackend;
+    private ThreadExecutor detachedExecutor;
+    private ResultStore resultStore;
+    private UploadStore uploadStore;
+    private BlobStore blobStore = new BlobStore(Long.getLong("faas.blobs.maxBytes", 256L * 1024 * 1024),
+            this::reserveBlobMemory, this::releaseBlobMemory);
+    private int maxBatchedTaskSize = Integer.getInteger("faas.batch.maxTaskSize", 64 * 1024);
+    private static final int MIN_JOBS_TO_JUDGE_SPEED = 16;
+    private long maxBatchedJobNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("faas.batch.maxJobMillis", 10));
+    private long maxBatchNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("faas.batch.maxBatchMillis", 50));
+    private AtomicInteger nextBatchKey = new AtomicInteger();
+    private MicroBatcher<BatchedJob> smallJobBatcher = new MicroBatcher<>(
+            Integer.getInteger("faas.batch.workers", Runtime.getRuntime().availableProcessors()),
+            Integer.getInteger("faas.batch.maxJobs", 64),
+            Long.getLong("faas.batch.maxDelayMicros", 200),
+            this::runBatch, "batch-worker");
+    private int maxChunkSize = Integer.getInteger("faas.uploads.maxChunkSize", 8 * 1024 * 1024);
+    private UsageLedger usageLedger;
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
 
-    private Map<String, User> userDatabase = new HashMap<>();
-    private Map<String, DataOutputStream> loggedInUsers = new HashMap<>();
+    private Map<String, User> userDatabase = new ConcurrentHashMap<>();
+    private Map<String, DataOutputStream> loggedInUsers = new ConcurrentHashMap<>();
 
-    private int availableMemory = 1024 * 1024 * 1024;
+    private static final long TOTAL_MEMORY = Long.getLong("faas.memory", 1024L * 1024 * 1024);
+    private static final int MAX_TASK_SIZE = Integer.MAX_VALUE - 8;
+
+    private long availableMemory = TOTAL_MEMORY;
     private int pendingTasks = 0;
+    private WorkloadStats workloadStats = new WorkloadStats();
+    private Lock statusLock = new ReentrantLock();
+    private StatusPublisher statusPublisher = new StatusPublisher(TOTAL_MEMORY, 0, Long.getLong("faas.status.minIntervalMillis", 100));
+
+    private double requestsPerSecond = Double.parseDouble(System.getProperty("faas.limit.requestsPerSecond", "50"));
+    private long requestBurst = Long.getLong("faas.limit.requestBurst", 20);
+    private double uploadBytesPerSecond = Double.parseDouble(System.getProperty("faas.limit.uploadBytesPerSecond", "0"));
+    private long uploadBurst = Long.getLong("faas.limit.uploadBurst", 64L * 1024 * 1024);
+    private boolean perConnectionLimits = Boolean.getBoolean("faas.limit.perConnection");
+    private Properties userLimits = loadUserLimits(System.getProperty("faas.limit.file"));
+
+    private CredentialVerifier credentialVerifier = new CredentialVerifier(
+            Integer.getInteger("faas.auth.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+            Integer.getInteger("faas.auth.maxQueued", 256),
+            new CredentialCache(Integer.getInteger("faas.auth.cacheSize", 10_000), Long.getLong("faas.auth.cacheMillis", 5 * 60 * 1000L)));
 
     public CentralServer(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
-        executorService = new ThreadExecutor(10);
+        this(port, new InProcessBackend());
+    }
+
+    public CentralServer(int port, ExecutionBackend executionBackend) throws IOException {
+        this(port, executionBackend, Integer.getInteger("faas.acceptors", 1));
+    }
+
+    /**
+     * Creates a server with the given number of acceptor shards.
+     * On platforms that support SO_REUSEPORT (e.g. Linux) every shard binds its own socket to the port and
+     * the kernel load-balances incoming connections between them; elsewhere the shards share one socket.
+     * Each shard has its own accept thread and connection handling pool, while users, the memory budget
+     * and job execution are shared by the whole server. The "faas.handlerThreads" connection handling
+     * threads (10 per shard by default) are split evenly between the shards.
+     * The accept backlog of each socket is set by the "faas.backlog" property, so connection storms are
+     * queued by the kernel instead of having their SYNs dropped.
+     */
+    public CentralServer(int port, ExecutionBackend executionBackend, int acceptors) throws IOException {
+        int backlog = Integer.getInteger("faas.backlog", 1024);
+        int handlerThreads = Integer.getInteger("faas.handlerThreads", 10 * acceptors);
+        ServerSocketChannel sharedChannel = null;
+        for (int i = 0; i < acceptors; i++) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            if (channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                if (acceptors > 1) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind(new InetSocketAddress(port), backlog);
+            } else if (sharedChannel == null) {
+                channel.bind(new InetSocketAddress(port), backlog);
+                sharedChannel = channel;
+            } else {
+                channel.close();
+                channel = sharedChannel;
+            }
+            int shardThreads = handlerThreads / acceptors + (i < handlerThreads % acceptors ? 1 : 0);
+            acceptorShards.add(new AcceptorShard(channel, Math.max(1, shardThreads)));
+        }
+        this.executionBackend = executionBackend;
+        detachedExecutor = new ThreadExecutor(Integer.getInteger("faas.detached.threads", 10));
+        resultStore = new ResultStore(
+                Paths.get(System.getProperty("faas.results.dir", "results")),
+                Integer.getInteger("faas.results.segmentSize", 64 * 1024 * 1024),
+                Long.getLong("faas.results.retentionMillis", 60 * 60 * 1000L));
+        uploadStore = new UploadStore(
+                Paths.get(System.getProperty("faas.uploads.dir", "uploads")),
+                Long.getLong("faas.uploads.expiryMillis", 60 * 60 * 1000L),
+                Integer.getInteger("faas.uploads.maxPerUser", 4));
+        usageLedger = new UsageLedger(
+                Paths.get(System.getProperty("faas.usage.dir", "usage")),
+                Integer.getInteger("faas.usage.segmentRecords", 1024 * 1024));
     }
 
     /**
      * Starts the central server and listens for incoming client connections.
-     * Once a client connection is established, a new thread is created to handle the client.
+     * Every acceptor shard but the first runs on its own thread; the first one runs on the calling thread,
+     * so this method only returns once the server is stopped.
      */
     public void start() {
         System.out.println("Central Server started.");
-        while (true) {
+        for (int i = 1; i < acceptorShards.size(); i++) {
+            Thread acceptor = new Thread(acceptorShards.get(i), "acceptor-" + i);
+            acceptor.start();
+        }
+        acceptorShards.get(0).run();
+    }
+
+    /**
+     * Stops accepting connections. Connections that are already open are not closed.
+     */
+    public void stop() {
+        for (AcceptorShard shard : acceptorShards) {
             try {
-                Socket clientSocket = serverSocket.accept();
-                executorService.submitTask(new ClientHandler(clientSocket));
-                
+                shard.channel.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    /**
+     * Stops the server and releases its threads: stops accepting connections, closes the open connections,
+     * waits for their handlers, the requests they were running and the queued detached jobs to finish,
+     * and stops the background threads.
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public void shutdown() throws InterruptedException {
+        stop();
+        List<ClientHandler> connections = new ArrayList<>(openConnections);
+        for (ClientHandler connection : connections) {
+            connection.closeConnection();
+        }
+        for (AcceptorShard shard : acceptorShards) {
+            shard.executorService.shutdown();
+        }
+        for (AcceptorShard shard : acceptorShards) {
+            shard.executorService.awaitTermination();
+        }
+        for (ClientHandler connection : connections) {
+            connection.awaitRequests();
+        }
+        detachedExecutor.shutdown();
+        detachedExecutor.awaitTermination();
+
+        smallJobBatcher.close();
+        statusPublisher.close();
+        resultStore.close();
+        uploadStore.close();
+        credentialVerifier.shutdown();
+        try {
+            usageLedger.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the number of connections accepted since the server started.
+     */
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    /**
+     * Changes the rate limits of a registered user. The new limits apply to the next requests of every
+     * connection of the user (with per-connection limits, to connections opened afterwards).
+     *
+     * @param username the name of the user
+     * @param requestsPerSecond the sustained number of requests per second (non-positive for no limit)
+     * @param requestBurst the number of requests that may be sent at once
+     * @param uploadBytesPerSecond the sustained number of uploaded task bytes per second (non-positive for no limit)
+     * @param uploadBurst the number of task bytes that may be uploaded at once
+     * @return true if the user exists, false otherwise
+     */
+    public boolean setRateLimits(String username, double requestsPerSecond, long requestBurst, double uploadBytesPerSecond, long uploadBurst) {
+        User user = userDatabase.get(username);
+        if (user == null) return false;
+        user.setRateLimits(requestsPerSecond, requestBurst, uploadBytesPerSecond, uploadBurst);
+        return true;
+    }
+
+    /**
+     * Loads the per-user rate limits, a properties file with entries such as {@code alice.requestsPerSecond=200}.
+     * Users without an entry get the "faas.limit.*" defaults.
+     */
+    private static Properties loadUserLimits(String file) {
+        Properties limits = new Properties();
+        if (file == null) return limits;
+        try (Reader reader = Files.newBufferedReader(Paths.get(file))) {
+            limits.load(reader);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return limits;
+    }
+
+    /**
+     * Applies the limits of a newly registered user: its entries in the "faas.limit.file" file, or the defaults.
+     */
+    private void applyRateLimits(User user) {
+        String prefix = user.getUsername() + ".";
+        user.setRateLimits(
+                Double.parseDouble(userLimits.getProperty(prefix + "requestsPerSecond", String.valueOf(requestsPerSecond))),
+                Long.parseLong(userLimits.getProperty(prefix + "requestBurst", String.valueOf(requestBurst))),
+                Double.parseDouble(userLimits.getProperty(prefix + "uploadBytesPerSecond", String.valueOf(uploadBytesPerSecond))),
+                Long.parseLong(userLimits.getProperty(prefix + "uploadBurst", String.valueOf(uploadBurst))));
+    }
+
+    /**
+     * Pauses the accept loop after a failed accept (e.g. out of file descriptors), so it does not spin.
+     */
+    private static void backOff() {
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * An accept loop with its own listening socket (or a share of it) and its own connection handling pool.
+     */
+    private class AcceptorShard implements Runnable {
+        private ServerSocketChannel channel;
+        private ThreadExecutor executorService;
+
+        public AcceptorShard(ServerSocketChannel channel, int handlerThreads) {
+            this.channel = channel;
+            this.executorService = new ThreadExecutor(handlerThreads);
+        }
+
+        /**
+         * Accepts connections until the listening socket is closed.
+         * Once a client connection is established, it is handed to the pool of this shard.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Socket clientSocket = channel.accept().socket();
+                    acceptedConnections.increment();
+                    ServerEvents.ConnectionAccept event = new ServerEvents.ConnectionAccept();
+                    event.begin();
+                    ClientHandler handler = new ClientHandler(clientSocket);
+                    openConnections.add(handler);
+                    executorService.submitTask(handler);
+                    if (event.shouldCommit()) {
+                        event.remoteAddress = String.valueOf(clientSocket.getRemoteSocketAddress());
+                        event.outcome = "ACCEPTED";
+                        event.commit();
+                    }
+
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    backOff();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a CentralServer on port 8080.
+     * Jobs run in the server JVM unless the "faas.backend" system property is set to "process",
+     * in which case they run in a pool of child JVMs configured by the "faas.pool.*" properties.
+     */
     public static void main(String[] args) {
         try {
-            CentralServer server = new CentralServer(8080);
+            ExecutionBackend backend = createExecutionBackend();
+            Runtime.getRuntime().addShutdownHook(new Thread(backend::close, "backend-shutdown"));
+            CentralServer server = new CentralServer(8080, backend);
             server.start();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private static ExecutionBackend createExecutionBackend() {
+        if (!"process".equals(System.getProperty("faas.backend"))) {
+            return new InProcessBackend();
+        }
+
+        String jvmArguments = System.getProperty("faas.pool.jvmArgs", "-Xmx256m");
+        int maxProcesses = Integer.getInteger("faas.pool.maxProcesses", 16);
+        return new ProcessPoolBackend(
+                maxProcesses,
+                Integer.getInteger("faas.pool.warmSpares", maxProcesses),
+                Integer.getInteger("faas.pool.maxJobs", 1000),
+                Long.getLong("faas.pool.maxHeapGrowth", 64L * 1024 * 1024),
+                Long.getLong("faas.pool.jobTimeoutMillis", 60_000L),
+                Long.getLong("faas.pool.startupTimeoutMillis", 30_000L),
+                jvmArguments.isEmpty() ? Collections.emptyList() : Arrays.asList(jvmArguments.split(" ")));
+    }
+
+    /**
+     * Reserves memory for a job, if enough is available. Stored task inputs no job is using are
+     * evicted if that makes the job fit, but only as many bytes as the job is missing.
+     *
+     * @param bytes the size of the job's input
+     * @return true if the memory was reserved, false otherwise
+     */
+    private boolean reserveMemory(long bytes) {
+        long deficit = tryReserveMemory(bytes);
+        if (deficit == 0) return true;
+        return blobStore.evict(deficit) > 0 && tryReserveMemory(bytes) == 0;
+    }
+
+    /**
+     * Reserves memory for a job without evicting anything.
+     *
+     * @return 0 if the memory was reserved, otherwise how many bytes are missing
+     */
+    private long tryReserveMemory(long bytes) {
+        statusLock.lock();
+        try {
+            if (bytes > availableMemory) return bytes - availableMemory;
+            availableMemory -= bytes;
+            pendingTasks++;
+            workloadStats.recordAdmission(bytes);
+            statusPublisher.statusChanged(availableMemory, pendingTasks);
+            return 0;
+        } finally {
+            statusLock.unlock();
+        }
+    }
+
+    /**
+     * Charges a task input kept in the BlobStore to the memory budget. The input is only kept if the
+     * job about to run it still fits afterwards, so caching never turns an admissible task away.
+     *
+     * @param bytes the size of the input
+     * @return true if the memory was reserved, false otherwise
+     */
+    private boolean reserveBlobMemory(long bytes) {
+        statusLock.lock();
+        try {
+            if (2 * bytes > availableMemory) return false;
+            availableMemory -= bytes;
+            statusPublisher.statusChanged(availableMemory, pendingTasks);
+            return true;
+        } finally {
+            statusLock.unlock();
+        }
+    }
+
+    /**
+     * Gives the memory of a task input evicted from the BlobStore back to the budget.
+     *
+     * @param bytes the size of the input
+     */
+    private void releaseBlobMemory(long bytes) {
+        statusLock.lock();
+        try {
+            availableMemory += bytes;
+            statusPublisher.statusChanged(availableMemory, pendingTasks);
+        } finally {
+            statusLock.unlock();
+        }
+    }
+
+    /**
+     * Gives back the memory of a job that was admitted but never ran, e.g. because its input could not be
+     * loaded. Unlike releaseMemory, nothing is recorded as completed, so the estimates are not skewed.
+     *
+     * @param bytes the size of the job's input
+     */
+    private void cancelReservation(long bytes) {
+        statusLock.lock();
+        try {
+            availableMemory += bytes;
+            pendingTasks--;
+            statusPublisher.statusChanged(availableMemory, pendingTasks);
+        } finally {
+            statusLock.unlock();
+        }
+    }
+
+    /**
+     * Releases the memory of a finished job.
+     *
+     * @param bytes the size of the job's input
+     * @param executionNanos how long the job took to execute
+     */
+    private void releaseMemory(long bytes, long executionNanos) {
+        statusLock.lock();
+        try {
+            availableMemory += bytes;
+            pendingTasks--;
+            workloadStats.recordCompletion(bytes, executionNanos);
+            statusPublisher.statusChanged(availableMemory, pendingTasks);
+        } finally {
+            statusLock.unlock();
+        }
+    }
+
+    /**
+     * Decides whether a job is too slow to be batched, from the execution times of past jobs.
+     * Until a few jobs have finished, so that the first jobs of a cold server do not get every job judged slow,
+     * every job is assumed to be fast, and the batch time limit bounds the cost of being wrong.
+     *
+     * @param payloadSize the size of the job's input
+     * @return true if the job is expected to run for longer than faas.batch.maxJobMillis
+     */
+    private boolean isSlowJob(long payloadSize) {
+        statusLock.lock();
+        try {
+            return workloadStats.recentJobs() >= MIN_JOBS_TO_JUDGE_SPEED
+                    && workloadStats.estimateExecutionNanos(payloadSize) > maxBatchedJobNanos;
+        } finally {
+            statusLock.unlock();
+        }
+    }
+
+    /**
+     * Runs a batch of small jobs back-to-back. Each connection is answered with a single write holding the
+     * answers to its jobs in the batch, in request order, as soon as its last job in the batch is done.
+     * Once the batch has run for faas.batch.maxBatchMillis, the jobs not started yet are left for the next
+     * batch, so jobs slower than expected do not hold the worker, and the connections queued on it, for long.
+     * A job that throws is answered like a failed job and its memory is released, so it never takes the
+     * answers of the jobs after it down with it.
+     *
+     * @return the number of jobs that were handled
+     */
+    private int runBatch(List<BatchedJob> batch) {
+        long deadline = System.nanoTime() + maxBatchNanos;
+        Map<ClientHandler, ByteArrayOutputStream> frames = new HashMap<>();
+        int handled = 0;
+        while (handled < batch.size()) {
+            BatchedJob job = batch.get(handled++);
+            if (job.decision.equals("ADMITTED")) {
+                long start = System.nanoTime();
+                try {
+                    job.result = job.handler.executeTask(job.task, job.decodedAt);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    releaseMemory(job.task.length, System.nanoTime() - start);
+                    job.handler.commitMemoryReservation(job.task.length, job.task.length);
+                }
+            }
+
+            ByteArrayOutputStream frame = frames.computeIfAbsent(job.handler, handler -> new ByteArrayOutputStream());
+            try {
+                writeAnswer(new DataOutputStream(frame), job);
+            } catch (IOException e) {
+                job.handler.closeConnection();
+            }
+
+            if (System.nanoTime() - deadline >= 0) break;
+            if (!hasJobAfter(batch, handled, job.handler)) sendAnswers(job.handler, frames.remove(job.handler));
+        }
+
+        for (Map.Entry<ClientHandler, ByteArrayOutputStream> frame : frames.entrySet()) {
+            sendAnswers(frame.getKey(), frame.getValue());
+        }
+        return handled;
+    }
+
+    /**
+     * Checks whether a connection has another job in the batch, from the given index on.
+     */
+    private static boolean hasJobAfter(List<BatchedJob> batch, int index, ClientHandler handler) {
+        for (int i = index; i < batch.size(); i++) {
+            if (batch.get(i).handler == handler) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the answer to a batched job: its decision followed, if it was admitted, by its result
+     * as in EXECUTE_TASK (a length of 0 if the job failed).
+     */
+    private static void writeAnswer(DataOutputStream out, BatchedJob job) throws IOException {
+        out.writeUTF(job.decision);
+        if (!job.decision.equals("ADMITTED")) return;
+
+        if (job.result == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(job.result.length);
+            out.write(job.result);
+        }
+    }
+
+    /**
+     * Sends the answers of a batch to a connection, closing it if they cannot be written.
+     */
+    private static void sendAnswers(ClientHandler handler, ByteArrayOutputStream frame) {
+        try {
+            handler.sendFrame(frame);
+        } catch (IOException e) {
+            handler.closeConnection();
+        }
+    }
+
+    /**
+     * A small job queued on the MicroBatcher. Rejected jobs are queued too, with their decision,
+     * so that the answers to a connection stay in request order.
+     */
+    private static class BatchedJob {
+        private final ClientHandler handler;
+        private final byte[] task;
+        private final String decision;
+        private final long decodedAt;
+        private byte[] result = null;
+
+        BatchedJob(ClientHandler handler, byte[] task, String decision, long decodedAt) {
+            this.handler = handler;
+            this.task = task;
+            this.decision = decision;
+            this.decodedAt = decodedAt;
+        }
+    }
+
     /**
      * The ClientHandler class represents a thread that handles communication with a client.
      * It implements the Runnable interface and is responsible for processing client requests
@@ -63,15 +569,22 @@ public class CentralServer {
      */
     private class ClientHandler implements Runnable {
         private Socket clientSocket;
-        private String clientName = null;
-        private ThreadExecutor clienThreadExecutor = new ThreadExecutor(5);
+        private volatile String clientName = null;
+        private ThreadExecutor clienThreadExecutor = null;
         private boolean exit = false;
         private Lock inputLock = new ReentrantLock();
         private Lock outputLock = new ReentrantLock();
+        private Condition inputReleased = inputLock.newCondition();
+        private FuncExecutor inputHolder = null;
 
         private DataInputStream in = null;
         private DataOutputStream out = null;
 
+        private User user = null;
+        private TokenBucket connectionRequestLimiter = new TokenBucket(0, 0);
+        private TokenBucket connectionUploadLimiter = new TokenBucket(0, 0);
+        private int batchKey = nextBatchKey.getAndIncrement();
+
 
         public ClientHandler(Socket socket) {
             this.clientSocket = socket;
@@ -85,29 +598,97 @@ public class CentralServer {
 
         /**
          * Runs the server thread, handling client requests.
+         * The next request type is only read once the handler of the previous request
+         * has read the rest of its input (see releaseInput).
+         * When the loop ends, the connection's resources are released (see disconnect) and the socket
+         * is closed, unless the connection was handed over to the StatusPublisher.
          */
         @Override
         public void run() {
+            boolean subscribed = false;
             try {
                 while (!exit) {
-                    String requestType = "FAIL";
+                    FuncExecutor funcExecutor;
                     inputLock.lock();
                     try {
-                        requestType = in.readUTF();
+                        while (inputHolder != null) {
+                            inputReleased.await();
+                        }
+                        if (exit) break;
+                        String requestType = in.readUTF();
+                        if (requestType.equals("EXECUTE_SMALL")) {
+                            handleExecuteSmall();
+                            continue;
+                        }
+                        funcExecutor = new FuncExecutor(requestType);
+                        inputHolder = funcExecutor;
                     } finally {
                         inputLock.unlock();
                     }
-                    FuncExecutor funcExecutor = new FuncExecutor(requestType);
+
+                    if (funcExecutor.requestType.equals("ATTACH_STATUS")) {
+                        subscribed = handleAttachStatus();
+                        return;
+                    }
+
+                    if (clienThreadExecutor == null) clienThreadExecutor = new ThreadExecutor(5);
                     clienThreadExecutor.submitTask(funcExecutor);
-                    Thread.sleep(1);
                 }
+            } catch (EOFException | SocketException | ClosedChannelException e) {
+                // The client disconnected (or reset the connection) between two requests, or the server closed it.
             } catch (IOException | InterruptedException e) {
                 e.printStackTrace();
+            } finally {
+                disconnect();
+                if (!subscribed) {
+                    try {
+                        clientSocket.close();
+                    } catch (IOException closeError) {
+                        closeError.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Releases what the connection holds once its request loop ends: its entry in loggedInUsers, its place
+         * in openConnections and the threads of its executor, which exit after finishing the requests already
+         * submitted.
+         */
+        private void disconnect() {
+            String name = clientName;
+            if (name != null) loggedInUsers.remove(name, out);
+            if (clienThreadExecutor != null) clienThreadExecutor.shutdown();
+            openConnections.remove(this);
+        }
+
+        /**
+         * Waits for the requests of the connection to finish, once its request loop has ended.
+         */
+        private void awaitRequests() throws InterruptedException {
+            if (clienThreadExecutor != null) clienThreadExecutor.awaitTermination();
+        }
+
+        /**
+         * Signals the request loop that the request running on the calling thread has read all of its input,
+         * so the next request type can be read. Only the request that holds the input can release it, so
+         * calling it more than once is harmless, even after the next request has been read.
+         */
+        private void releaseInput() {
+            inputLock.lock();
+            try {
+                if (inputHolder != null && inputHolder.worker == Thread.currentThread()) {
+                    inputHolder = null;
+                    inputReleased.signal();
+                }
+            } finally {
+                inputLock.unlock();
             }
         }
 
         class FuncExecutor implements Runnable {
             private String requestType;
+            private volatile Thread worker;
 
             public FuncExecutor(String requestType) {
                 this.requestType = requestType;
@@ -115,6 +696,7 @@ public class CentralServer {
 
             @Override
             public void run() {
+                worker = Thread.currentThread();
                 try {
                     switch (requestType) {
                         case "REGISTER":
@@ -124,15 +706,56 @@ public class CentralServer {
                             handleLogin();
                             break;
                         case "EXECUTE_TASK":
-                            if (validateUser()) handleExecuteTask();
+                            if (validateUser(true)) handleExecuteTask(false);
+                            break;
+                        case "EXECUTE_TASK_HASHED":
+                            if (validateUser(true)) handleExecuteTask(true);
                             break;
                         case "QUERY_STATUS":
-                            if (validateUser()) handleQueryStatus();
+                            if (validateUser(true)) handleQueryStatus();
+                            break;
+                        case "SUBSCRIBE_STATUS":
+                            if (validateUser(true)) handleSubscribeStatus();
+                            break;
+                        case "QUERY_STATUS_ETA":
+                            long payloadSize = readLongArgument();
+                            if (validateUser(true)) handleQueryStatusEstimate(payloadSize);
+                            break;
+                        case "EXECUTE_DETACHED":
+                            if (validateUser(true)) handleExecuteDetached(false);
+                            break;
+                        case "EXECUTE_DETACHED_HASHED":
+                            if (validateUser(true)) handleExecuteDetached(true);
+                            break;
+                        case "GET_RESULT":
+                            long jobId = readLongArgument();
+                            if (validateUser(true)) handleGetResult(jobId);
+                            break;
+                        case "LIST_JOBS":
+                            if (validateUser(true)) handleListJobs();
+                            break;
+                        case "QUERY_USAGE":
+                            if (validateUser(true)) handleQueryUsage();
+                            break;
+                        case "BEGIN_UPLOAD":
+                            long uploadSize = readLongArgument();
+                            if (validateUser(true)) handleBeginUpload(uploadSize);
+                            break;
+                        case "UPLOAD_CHUNK":
+                            handleUploadChunk();
+                            break;
+                        case "QUERY_UPLOAD":
+                            long queriedUpload = readLongArgument();
+                            if (validateUser(true)) handleQueryUpload(queriedUpload);
+                            break;
+                        case "EXECUTE_UPLOAD":
+                            long uploadId = readLongArgument();
+                            if (validateUser(true)) handleExecuteUpload(uploadId);
                             break;
                         case "LOGOUT":
-                            if (validateUser()) {
+                            if (validateUser(false)) {
                                 exit = true;
-                                loggedInUsers.remove(clientName);
+                                loggedInUsers.remove(clientName, out);
                                 clientSocket.close();
                                 System.out.println("User " + clientName + " logged out.");
                             }
@@ -141,6 +764,8 @@ public class CentralServer {
 
                 } catch (IOException e) {
                     e.printStackTrace();
+                } finally {
+                    releaseInput();
                 }
             }
         }
@@ -154,26 +779,46 @@ public class CentralServer {
          * @throws IOException If an I/O error occurs.
          */
         private boolean handleRegister() throws IOException {
+            String username = null;
+            boolean success = false;
+
             inputLock.lock();
             outputLock.lock();
+            ServerEvents.Register event = new ServerEvents.Register();
+            event.begin();
             try {
-                String username = in.readUTF();
+                username = in.readUTF();
                 String password = in.readUTF();
 
-                if (!userDatabase.containsKey(username)) {
-                    userDatabase.put(username, new User(username, password));
-                    loggedInUsers.put(username, out);
-                    out.writeUTF("REGISTER_SUCCESS");
-                    System.out.println("User registered: " + username);
-                    return true;
-                } else {
+                if (userDatabase.containsKey(username)) {
                     out.writeUTF("REGISTER_FAILURE");
+                    return false;
                 }
-                return false;
+
+                User user = credentialVerifier.createUser(username, password);
+                if (user == null) {
+                    out.writeUTF("REGISTER_BUSY");
+                    return false;
+                }
+
+                applyRateLimits(user);
+                if (userDatabase.putIfAbsent(username, user) != null) {
+                    out.writeUTF("REGISTER_FAILURE");
+                    return false;
+                }
+                out.writeUTF("REGISTER_SUCCESS");
+                System.out.println("User registered: " + username);
+                success = true;
+                return true;
 
             } finally {
                 inputLock.unlock();
                 outputLock.unlock();
+                if (event.shouldCommit()) {
+                    event.user = username;
+                    event.outcome = success ? "SUCCESS" : "FAILURE";
+                    event.commit();
+                }
             }
         }
 
@@ -186,19 +831,34 @@ public class CentralServer {
          * @throws IOException if an I/O error occurs.
          */
         private boolean handleLogin() throws IOException {
+            String username = null;
+            boolean success = false;
+
             outputLock.lock();
             inputLock.lock();
+            ServerEvents.Login event = new ServerEvents.Login();
+            event.begin();
             try {
-                String username = in.readUTF();
+                username = in.readUTF();
                 String password = in.readUTF();
 
-                User authenticatedUser = this.authenticateUser(username, password);
-                if (authenticatedUser != null) {
+                User authenticatedUser = userDatabase.get(username);
+                CredentialVerifier.Verification verification = credentialVerifier.verify(authenticatedUser, password);
+                if (verification == CredentialVerifier.Verification.VALID) {
+                    if (clientName != null) loggedInUsers.remove(clientName, out);
                     loggedInUsers.put(username, out);
                     this.clientName = username;
+                    this.user = authenticatedUser;
+                    if (perConnectionLimits) {
+                        connectionRequestLimiter = new TokenBucket(authenticatedUser.getRequestsPerSecond(), authenticatedUser.getRequestBurst());
+                        connectionUploadLimiter = new TokenBucket(authenticatedUser.getUploadBytesPerSecond(), authenticatedUser.getUploadBurst());
+                    }
                     out.writeUTF("LOGIN_SUCCESS");
                     System.out.println("User logged in: " + username);
+                    success = true;
                     return true;
+                } else if (verification == CredentialVerifier.Verification.BUSY) {
+                    out.writeUTF("LOGIN_BUSY");
                 } else {
                     out.writeUTF("LOGIN_FAILURE");
                 }
@@ -207,116 +867,699 @@ public class CentralServer {
             } finally {
                 outputLock.unlock();
                 inputLock.unlock();
+                if (event.shouldCommit()) {
+                    event.user = username;
+                    event.outcome = success ? "SUCCESS" : "FAILURE";
+                    event.commit();
+                }
             }
         }
 
         /**
-         * Checks if the given username and password match a user in the database.
-         */
-        private User authenticateUser(String username, String password) {
-            User user = userDatabase.get(username);
-            if (user != null && user.getPassword().equals(password)) {
-                return user;
-            }
-            return null;
-        }
-
-        /**
-         * Validates the user by checking if the clientName is null.
-         * Sends a response to the client indicating whether the user is valid or not.
+         * Validates the user by checking if the clientName is null and, if requested,
+         * whether the user is still within its request rate.
+         * Sends a response to the client indicating whether the user is valid, invalid or throttled.
          * 
-         * @param in The input stream to receive data from the client.
-         * @param out The output stream to send data to the client.
+         * @param rateLimited whether the request counts against the user's request rate
          * @return true if the user is valid, false otherwise.
          * @throws IOException if an I/O error occurs while reading or writing data.
          */
-        private boolean validateUser() throws IOException {
-            if (clientName == null) {
-                outputLock.lock();
-                try {
-                    out.writeUTF("INVALID");
-                    out.flush();
-                    return false;
-                } finally {
-                    outputLock.unlock();
-                }
-            }
+        private boolean validateUser(boolean rateLimited) throws IOException {
+            String validation = checkUser(rateLimited);
 
             outputLock.lock();
             try {
-                out.writeUTF("VALID");
+                out.writeUTF(validation);
                 out.flush();
-                return true;
+                return validation.equals("VALID");
             } finally {
                 outputLock.unlock();
             }
         }
 
         /**
-         * Reads a task from the client.
+         * Checks that the client is logged in and, if requested, within its request rate.
          *
-         * @param in the DataInputStream to read from
-         * @return the byte array representing the task
-         * @throws IOException if an I/O error occurs
+         * @return "VALID", "INVALID" or "THROTTLED"
          */
-        private byte[] readTaskFromClient() throws IOException {
-            inputLock.lock();
-            try {
-                int length = in.readInt();
-                byte[] result = new byte[length];
-                in.readFully(result);
-
-                return result;
-            } finally {
-                inputLock.unlock();
+        private String checkUser(boolean rateLimited) {
+            if (clientName == null) return "INVALID";
+            if (rateLimited && !TokenBucket.tryAcquireBoth(connectionRequestLimiter, user.getRequestLimiter(), 1)) {
+                return "THROTTLED";
             }
+            return "VALID";
         }
 
         /**
-         * Handles the execution of a task received from a client.
-         * 
-         * @param in The input stream to read the task from.
-         * @param out The output stream to send the result to the client.
-         * @throws IOException if an I/O error occurs.
+         * Charges the given number of task bytes to the upload limits of the connection and of the user.
+         * It is called with the declared length of a payload before the payload is read, so a throttled
+         * upload is never buffered.
+         *
+         * @return true if the bytes may be uploaded, false if either limit is exceeded
          */
-        private void handleExecuteTask() throws IOException {
-            byte[] task = readTaskFromClient();
+        private boolean acquireUpload(long bytes) {
+            return bytes <= 0 || TokenBucket.tryAcquireBoth(connectionUploadLimiter, user.getUploadLimiter(), bytes);
+        }
 
-            outputLock.lock();
-            try {
-                if (task.length > availableMemory) {
-                    out.writeBoolean(false);
-                    out.flush();
-                } else {
-                    out.writeBoolean(true);
-                    out.flush();
-                    byte[] result = executeTask(task);
-                    availableMemory += task.length;
-                    pendingTasks--;
-                    sendResultToClient(result);
-                }
-            } finally {
+        /**
+         * Handles an EXECUTE_SMALL request: {@code int length, byte[length] task}, sent without waiting for the
+         * user to be validated. The task is read by the request loop itself and queued on the MicroBatcher, which
+         * answers with a single write: the decision ("INVALID", "THROTTLED", "NO_MEMORY", "TOO_LARGE", "TOO_SLOW"
+         * or "ADMITTED") followed, if the task was admitted, by its result as in EXECUTE_TASK.
+         * A task is only batched if it is small and past jobs of its size ran fast; "TOO_LARGE" and "TOO_SLOW"
+         * tell the client to send it with EXECUTE_TASK instead.
+         *
+         * @throws IOException if an I/O error occurs
+         */
+        private void handleExecuteSmall() throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                clientSocket.close();
+                throw new IOException("Invalid task size: " + length);
+            }
+            String rejection = length > maxBatchedTaskSize ? "TOO_LARGE" : isSlowJob(length) ? "TOO_SLOW" : null;
+            if (rejection != null) {
+                if (in.skipBytes(length) < length) throw new EOFException();
+                smallJobBatcher.submit(batchKey, new BatchedJob(this, null, rejection, System.nanoTime()));
+                return;
+            }
+
+            ServerEvents.AdmissionWait admission = new ServerEvents.AdmissionWait();
+            admission.begin();
+            String decision = checkUser(true);
+            if (decision.equals("VALID") && !acquireUpload(length)) decision = "THROTTLED";
+            if (!decision.equals("VALID")) {
+                if (in.skipBytes(length) < length) throw new EOFException();
+                commitAdmission(admission, length, decision);
+                smallJobBatcher.submit(batchKey, new BatchedJob(this, null, decision, System.nanoTime()));
+                return;
+            }
+
+            byte[] task = new byte[length];
+            in.readFully(task);
+            long decodedAt = System.nanoTime();
+            decision = admitTask(task);
+            commitAdmission(admission, length, decision);
+
+            smallJobBatcher.submit(batchKey, new BatchedJob(this, task, decision, decodedAt));
+        }
+
+        /**
+         * Writes the answers of a batch to the client, with a single write.
+         */
+        private void sendFrame(ByteArrayOutputStream frame) throws IOException {
+            outputLock.lock();
+            try {
+                frame.writeTo(out);
+                out.flush();
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        /**
+         * Closes the connection after a failed write, or on shutdown; the request loop then sees the client
+         * as disconnected.
+         */
+        private void closeConnection() {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Reads a task from the client.
+         * With hash negotiation, the client first sends the length and SHA-256 hash of the task. The server
+         * answers "HAVE" if this user's task is in its BlobStore, "THROTTLED" if sending it would exceed the upload
+         * limits, and otherwise "NEED", after which the client sends the task itself, which is checked against
+         * the hash and kept in the BlobStore for next time.
+         * Without hash negotiation, a task over the upload limits is skipped and answered with "THROTTLED".
+         *
+         * @param hashed whether the task is sent with hash negotiation
+         * @return the task, to be released once the job is done with it, or null if the client was already
+         *         answered because the task was throttled or did not match its hash
+         * @throws IOException if an I/O error occurs
+         */
+        private BlobStore.Blob readTaskFromClient(boolean hashed) throws IOException {
+            int length = -1;
+            byte[] hash = null;
+            byte[] task = null;
+            BlobStore.Blob blob = null;
+            boolean throttled = false;
+            boolean success = false;
+
+            inputLock.lock();
+            ServerEvents.RequestDecode event = new ServerEvents.RequestDecode();
+            event.begin();
+            try {
+                length = in.readInt();
+                if (hashed) {
+                    hash = new byte[BlobStore.HASH_SIZE];
+                    in.readFully(hash);
+                    blob = blobStore.acquire(clientName, hash);
+                    throttled = blob == null && !acquireUpload(length);
+
+                    outputLock.lock();
+                    try {
+                        out.writeUTF(blob != null ? "HAVE" : throttled ? "THROTTLED" : "NEED");
+                        out.flush();
+                    } finally {
+                        outputLock.unlock();
+                    }
+                } else if (!acquireUpload(length)) {
+                    throttled = true;
+                    if (in.skipBytes(length) < length) throw new EOFException();
+                    sendAnswer("THROTTLED");
+                }
+                if (blob == null && !throttled) {
+                    task = new byte[length];
+                    in.readFully(task);
+                }
+
+                success = true;
+            } finally {
+                releaseInput();
+                inputLock.unlock();
+                if (event.shouldCommit()) {
+                    event.requestType = hashed ? "EXECUTE_TASK_HASHED" : "EXECUTE_TASK";
+                    event.user = clientName;
+                    event.payloadSize = length;
+                    event.outcome = !success ? "FAILURE" : blob != null ? "CACHED" : throttled ? "THROTTLED" : "SUCCESS";
+                    event.commit();
+                }
+            }
+
+            if (blob != null) return blob;
+            if (throttled) return null;
+            if (!hashed) return BlobStore.Blob.unstored(task);
+            if (!MessageDigest.isEqual(hash, BlobStore.hash(task))) {
+                sendAnswer("BAD_HASH");
+                return null;
+            }
+            return blobStore.store(clientName, hash, task);
+        }
+
+        /**
+         * Handles the execution of a task received from a client.
+         * 
+         * @param in The input stream to read the task from.
+         * @param out The output stream to send the result to the client.
+         * @throws IOException if an I/O error occurs.
+         */
+        private void handleExecuteTask(boolean hashed) throws IOException {
+            BlobStore.Blob blob = readTaskFromClient(hashed);
+            long decodedAt = System.nanoTime();
+            if (blob == null) return;
+            byte[] task = blob.getData();
+
+            ServerEvents.AdmissionWait admission = new ServerEvents.AdmissionWait();
+            admission.begin();
+            outputLock.lock();
+            try {
+                String decision = admitTask(task);
+                out.writeUTF(decision);
+                out.flush();
+                commitAdmission(admission, task.length, decision);
+
+                if (decision.equals("ADMITTED")) {
+                    byte[] result;
+                    long start = System.nanoTime();
+                    try {
+                        result = executeTask(task, decodedAt);
+                    } finally {
+                        releaseMemory(task.length, System.nanoTime() - start);
+                        commitMemoryReservation(task.length, task.length);
+                    }
+                    sendResultToClient(result);
+                }
+            } finally {
+                outputLock.unlock();
+                blob.release();
+            }
+        }
+
+        /**
+         * Answers a request that was rejected before it was handled: a task that was "THROTTLED" or did not
+         * match the hash it was announced with ("BAD_HASH"), or a chunk from an "INVALID" user.
+         */
+        private void sendAnswer(String answer) throws IOException {
+            outputLock.lock();
+            try {
+                out.writeUTF(answer);
+                out.flush();
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        /**
+         * Decides whether a task is admitted, reserving its memory if it is.
+         * Its upload was already charged to the upload limits, before it was read.
+         *
+         * @param task the task to admit
+         * @return "ADMITTED" or "NO_MEMORY"
+         */
+        private String admitTask(byte[] task) {
+            if (!reserveMemory(task.length)) {
+                return "NO_MEMORY";
+            }
+            commitMemoryReservation(-task.length, task.length);
+            return "ADMITTED";
+        }
+
+        /**
+         * Handles a detached execution: the task is admitted as usual, but the client immediately
+         * receives a job ID and the result is written to the ResultStore, to be fetched with GET_RESULT.
+         *
+         * @throws IOException if an I/O error occurs.
+         */
+        private void handleExecuteDetached(boolean hashed) throws IOException {
+            BlobStore.Blob blob = readTaskFromClient(hashed);
+            long decodedAt = System.nanoTime();
+            if (blob == null) return;
+            byte[] task = blob.getData();
+
+            ServerEvents.AdmissionWait admission = new ServerEvents.AdmissionWait();
+            admission.begin();
+            String decision = admitTask(task);
+            long jobId = decision.equals("ADMITTED") ? resultStore.createJob(clientName) : -1;
+
+            if (jobId == -1) {
+                blob.release();
+            } else {
+                detachedExecutor.submitTask(() -> {
+                    try {
+                        runDetachedJob(jobId, task, decodedAt);
+                    } finally {
+                        blob.release();
+                    }
+                });
+            }
+
+            outputLock.lock();
+            try {
+                out.writeUTF(decision);
+                if (jobId != -1) out.writeLong(jobId);
+                out.flush();
+            } finally {
+                outputLock.unlock();
+            }
+            commitAdmission(admission, task.length, decision);
+        }
+
+        /**
+         * Runs a detached job and stores its outcome.
+         */
+        private void runDetachedJob(long jobId, byte[] task, long decodedAt) {
+            byte[] result;
+            long start = System.nanoTime();
+            try {
+                result = executeTask(task, decodedAt);
+            } finally {
+                releaseMemory(task.length, System.nanoTime() - start);
+                commitMemoryReservation(task.length, task.length);
+            }
+
+            try {
+                if (result == null) resultStore.fail(jobId);
+                else resultStore.complete(jobId, result);
+            } catch (IOException e) {
+                e.printStackTrace();
+                resultStore.fail(jobId);
+            }
+        }
+
+        /**
+         * Handles a BEGIN_UPLOAD request, which starts a chunked upload of a task of the given size.
+         * The client receives "STARTED" followed by the upload ID, "REJECTED" if the task could never be executed,
+         * or "TOO_MANY_UPLOADS" if the user already has the maximum number of uploads in progress.
+         *
+         * @param size the size of the task, in bytes
+         * @throws IOException if an I/O error occurs.
+         */
+        private void handleBeginUpload(long size) throws IOException {
+            boolean rejected = size < 0 || size > MAX_TASK_SIZE || size > TOTAL_MEMORY;
+            long uploadId = rejected ? -1 : uploadStore.begin(clientName, size);
+
+            outputLock.lock();
+            try {
+                if (uploadId == -1) {
+                    out.writeUTF(rejected ? "REJECTED" : "TOO_MANY_UPLOADS");
+                } else {
+                    out.writeUTF("STARTED");
+                    out.writeLong(uploadId);
+                }
+                out.flush();
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        /**
+         * Handles an UPLOAD_CHUNK request: {@code long uploadId, long offset, int length, byte[length] chunk, long crc32},
+         * sent without waiting for the user to be validated, so a chunk costs a single round trip. The user is checked
+         * after the header, and the chunk of an invalid or throttled user is skipped without being buffered.
+         * The chunk is appended if its checksum matches and it starts where the upload left off. The client receives
+         * "INVALID", or "VALID" followed by "OK", "BAD_CHECKSUM" or "THROTTLED" and the offset to continue from,
+         * or by "UNKNOWN". Chunks count against the upload limits rather than the request limits, so large uploads
+         * are not throttled for their number of chunks.
+         *
+         * @throws IOException if an I/O error occurs.
+         */
+        private void handleUploadChunk() throws IOException {
+            long uploadId;
+            long offset;
+            String validation;
+            byte[] chunk = null;
+            long checksum;
+
+            inputLock.lock();
+            try {
+                uploadId = in.readLong();
+                offset = in.readLong();
+                int length = in.readInt();
+                if (length < 0 || length > maxChunkSize) {
+                    clientSocket.close();
+                    throw new IOException("Invalid chunk size: " + length);
+                }
+                validation = checkUser(false);
+                if (!validation.equals("VALID") || !acquireUpload(length)) {
+                    if (in.skipBytes(length) < length) throw new EOFException();
+                } else {
+                    chunk = new byte[length];
+                    in.readFully(chunk);
+                }
+                checksum = in.readLong();
+            } finally {
+                releaseInput();
+                inputLock.unlock();
+            }
+
+            if (!validation.equals("VALID")) {
+                sendAnswer(validation);
+                return;
+            }
+
+            String outcome;
+            long nextOffset;
+            if (chunk == null) {
+                outcome = "THROTTLED";
+                nextOffset = uploadStore.getOffset(clientName, uploadId);
+            } else if (!checksumMatches(chunk, checksum)) {
+                outcome = "BAD_CHECKSUM";
+                nextOffset = uploadStore.getOffset(clientName, uploadId);
+            } else {
+                outcome = "OK";
+                nextOffset = uploadStore.append(clientName, uploadId, offset, chunk);
+            }
+
+            outputLock.lock();
+            try {
+                out.writeUTF(validation);
+                if (nextOffset == -1) {
+                    out.writeUTF("UNKNOWN");
+                } else {
+                    out.writeUTF(outcome);
+                    out.writeLong(nextOffset);
+                }
+                out.flush();
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        /**
+         * Checks a chunk against the CRC32 checksum the client sent with it.
+         */
+        private boolean checksumMatches(byte[] chunk, long checksum) {
+            CRC32 crc = new CRC32();
+            crc.update(chunk);
+            return crc.getValue() == checksum;
+        }
+
+        /**
+         * Handles a QUERY_UPLOAD request, used to resume an upload after reconnecting. The client receives
+         * "UPLOADING" or "COMPLETE" followed by the offset to continue from and the size of the upload, or "UNKNOWN".
+         *
+         * @param uploadId the identifier of the upload
+         * @throws IOException if an I/O error occurs.
+         */
+        private void handleQueryUpload(long uploadId) throws IOException {
+            long offset = uploadStore.getOffset(clientName, uploadId);
+            long size = uploadStore.getSize(clientName, uploadId);
+
+            outputLock.lock();
+            try {
+                if (offset == -1) {
+                    out.writeUTF("UNKNOWN");
+                } else {
+                    out.writeUTF(offset < size ? "UPLOADING" : "COMPLETE");
+                    out.writeLong(offset);
+                    out.writeLong(size);
+                }
+                out.flush();
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        /**
+         * Handles an EXECUTE_UPLOAD request, which runs a complete upload as a detached job.
+         * The client receives "ADMITTED" followed by the job ID, or "NO_MEMORY" (the upload is kept, so the
+         * request can be retried), "INCOMPLETE" or "UNKNOWN".
+         *
+         * @param uploadId the identifier of the upload
+         * @throws IOException if an I/O error occurs.
+         */
+        private void handleExecuteUpload(long uploadId) throws IOException {
+            long decodedAt = System.nanoTime();
+            long offset = uploadStore.getOffset(clientName, uploadId);
+            long size = uploadStore.getSize(clientName, uploadId);
+            Path file = null;
+            long jobId = -1;
+
+            ServerEvents.AdmissionWait admission = new ServerEvents.AdmissionWait();
+            admission.begin();
+            String decision;
+            if (offset == -1) {
+                decision = "UNKNOWN";
+            } else if (offset < size) {
+                decision = "INCOMPLETE";
+            } else if (!reserveMemory(size)) {
+                decision = "NO_MEMORY";
+            } else {
+                file = uploadStore.finish(clientName, uploadId);
+                if (file == null) {
+                    cancelReservation(size);
+                    decision = "UNKNOWN";
+                } else {
+                    commitMemoryReservation(-size, size);
+                    jobId = resultStore.createJob(clientName);
+                    decision = "ADMITTED";
+                }
+            }
+
+            outputLock.lock();
+            try {
+                out.writeUTF(decision);
+                if (jobId != -1) out.writeLong(jobId);
+                out.flush();
+            } finally {
+                outputLock.unlock();
+            }
+            commitAdmission(admission, size, decision);
+
+            if (jobId != -1) {
+                long admittedJob = jobId;
+                Path uploadFile = file;
+                detachedExecutor.submitTask(() -> runUploadedJob(admittedJob, uploadFile, size, decodedAt));
+            }
+        }
+
+        /**
+         * Loads a finished upload and runs it as a detached job, deleting the upload file.
+         */
+        private void runUploadedJob(long jobId, Path file, long size, long decodedAt) {
+            byte[] task;
+            try {
+                task = Files.readAllBytes(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                cancelReservation(size);
+                commitMemoryReservation(size, size);
+                resultStore.fail(jobId);
+                return;
+            } finally {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            runDetachedJob(jobId, task, decodedAt);
+        }
+
+        /**
+         * Handles a GET_RESULT request. The client receives the status of the job and, if it is done,
+         * the length of the result followed by the result itself, sent from the segment file with transferTo.
+         *
+         * @param jobId the identifier of the job
+         * @throws IOException if an I/O error occurs.
+         */
+        private void handleGetResult(long jobId) throws IOException {
+            JobInfo job = resultStore.getJob(clientName, jobId);
+
+            outputLock.lock();
+            try {
+                if (job == null) {
+                    out.writeUTF("UNKNOWN");
+                } else if (!job.status.equals("DONE")) {
+                    out.writeUTF(job.status);
+                } else {
+                    out.writeUTF("DONE");
+                    out.writeLong(job.resultSize);
+                    out.flush();
+                    sendResult(jobId, job.resultSize);
+                }
+                out.flush();
+            } finally {
                 outputLock.unlock();
             }
         }
 
         /**
-         * Executes a task and returns the result.
+         * Sends the result of a job after its header. The client is then waiting for exactly that many bytes,
+         * so on any failure the connection is closed rather than left waiting for bytes that will never come.
+         */
+        private void sendResult(long jobId, long size) throws IOException {
+            boolean sent = false;
+            try {
+                if (resultStore.transferResult(clientName, jobId, clientSocket.getChannel()) != size) {
+                    throw new IOException("Result of job " + jobId + " expired while it was being sent");
+                }
+                sent = true;
+            } finally {
+                if (!sent) closeConnection();
+            }
+        }
+
+        /**
+         * Handles a LIST_JOBS request by sending the number of detached jobs of the user,
+         * followed by the ID, status, result size and submission time of each one.
+         *
+         * @throws IOException if an I/O error occurs.
+         */
+        private void handleListJobs() throws IOException {
+            List<JobInfo> jobs = resultStore.listJobs(clientName);
+
+            outputLock.lock();
+            try {
+                out.writeInt(jobs.size());
+                for (JobInfo job : jobs) {
+                    out.writeLong(job.jobId);
+                    out.writeUTF(job.status);
+                    out.writeLong(job.resultSize);
+                    out.writeLong(job.submittedAt);
+                }
+                out.flush();
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        private void commitAdmission(ServerEvents.AdmissionWait event, long payloadSize, String outcome) {
+            if (event.shouldCommit()) {
+                event.user = clientName;
+                event.payloadSize = payloadSize;
+                event.availableMemory = availableMemory;
+                event.outcome = outcome;
+                event.commit();
+            }
+        }
+
+        private void commitMemoryReservation(long delta, long payloadSize) {
+            ServerEvents.MemoryReservation event = new ServerEvents.MemoryReservation();
+            if (event.shouldCommit()) {
+                event.user = clientName;
+                event.payloadSize = payloadSize;
+                event.delta = delta;
+                event.availableMemory = availableMemory;
+                event.pendingTasks = pendingTasks;
+                event.outcome = delta < 0 ? "RESERVED" : "RELEASED";
+                event.commit();
+            }
+        }
+
+        /**
+         * Executes a task and returns the result, recording its usage in the usage ledger.
          *
          * @param task the task to be executed
+         * @param decodedAt the System.nanoTime() at which the task was read, to measure its queue wait
          * @return the result of the task execution
          */
-        private byte[] executeTask(byte[] task) {
-            byte[] result;
-            pendingTasks++;
-            availableMemory -= task.length;
-                
+        private byte[] executeTask(byte[] task, long decodedAt) {
+            byte[] result = null;
+            long start = System.nanoTime();
+            long cpuStart = threadCpuTime();
+
+            ServerEvents.JobExecute event = new ServerEvents.JobExecute();
+            event.begin();
             try {
-                result = JobFunction.execute(task);
+                result = executionBackend.execute(task);
                 return result;
             } catch (JobFunctionException e) {
+                event.errorCode = e.getCode();
                 System.err.println("Job failed! Code = " + e.getCode() + " message=" + e.getMessage());
                 return null;
+            } finally {
+                long end = System.nanoTime();
+                try {
+                    usageLedger.record(clientName, task.length, result == null ? 0 : result.length, start - decodedAt,
+                            threadCpuTime() - cpuStart, end - start, result == null ? UsageLedger.FAILED : UsageLedger.SUCCESS);
+                } catch (RuntimeException e) {
+                    // A ledger failure must not replace the outcome of the job.
+                    e.printStackTrace();
+                }
+                if (event.shouldCommit()) {
+                    event.user = clientName;
+                    event.payloadSize = task.length;
+                    event.resultSize = result == null ? 0 : result.length;
+                    event.outcome = result == null ? "FAILURE" : "SUCCESS";
+                    event.commit();
+                }
+            }
+        }
+
+        private long threadCpuTime() {
+            return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : 0;
+        }
+
+        /**
+         * Handles a QUERY_USAGE request by sending the user's usage since the server started, followed by
+         * the usage over the last hour, each as the number of jobs, failed jobs, input bytes, output bytes,
+         * queue wait and CPU time (in milliseconds).
+         *
+         * @throws IOException if an I/O error occurs while sending the response
+         */
+        private void handleQueryUsage() throws IOException {
+            UsageSummary total = usageLedger.getTotalUsage(clientName);
+            UsageSummary recent = usageLedger.getRecentUsage(clientName);
+
+            outputLock.lock();
+            try {
+                for (UsageSummary usage : new UsageSummary[] { total, recent }) {
+                    out.writeLong(usage.jobs);
+                    out.writeLong(usage.failedJobs);
+                    out.writeLong(usage.inputBytes);
+                    out.writeLong(usage.outputBytes);
+                    out.writeLong(usage.queueWaitMillis);
+                    out.writeLong(usage.cpuMillis);
+                }
+                out.flush();
+            } finally {
+                outputLock.unlock();
             }
         }
 
@@ -328,16 +1571,121 @@ public class CentralServer {
          * @throws IOException if an I/O error occurs while sending the result.
          */
         private void sendResultToClient(byte[] result) throws IOException {
+            ServerEvents.ResultSend event = new ServerEvents.ResultSend();
+            event.begin();
+            boolean success = false;
+
             outputLock.lock();
             try {
                 if (result == null) {
                     out.writeInt(0);
                     out.flush();
+                    success = true;
                     return;
                 }
                 out.writeInt(result.length);
                 out.write(result);
                 out.flush();
+                success = true;
+            } finally {
+                outputLock.unlock();
+                if (event.shouldCommit()) {
+                    event.user = clientName;
+                    event.resultSize = result == null ? 0 : result.length;
+                    event.outcome = !success ? "IO_ERROR" : result == null ? "EMPTY" : "SENT";
+                    event.commit();
+                }
+            }
+        }
+
+        /**
+         * Handles a subscription request by sending a single-use token that the client
+         * then redeems with ATTACH_STATUS on a new connection.
+         *
+         * @throws IOException if an I/O error occurs while sending the token
+         */
+        private void handleSubscribeStatus() throws IOException {
+            String token = statusPublisher.issueToken();
+
+            outputLock.lock();
+            try {
+                out.writeUTF(token);
+                out.flush();
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        /**
+         * Turns this connection into a status subscription. The connection is handed over to the
+         * StatusPublisher, so it no longer takes a thread of the server.
+         *
+         * @return true if the connection was handed over, false if the token was not valid
+         * @throws IOException if an I/O error occurs
+         */
+        private boolean handleAttachStatus() throws IOException {
+            String token;
+            int intervalMillis;
+            inputLock.lock();
+            try {
+                token = in.readUTF();
+                intervalMillis = in.readInt();
+            } finally {
+                inputLock.unlock();
+            }
+
+            return statusPublisher.subscribe(clientSocket, token, intervalMillis);
+        }
+
+        /**
+         * Reads the long argument sent with a request (the payload size of QUERY_STATUS_ETA,
+         * the job ID of GET_RESULT).
+         *
+         * @return the argument
+         * @throws IOException if an I/O error occurs
+         */
+        private long readLongArgument() throws IOException {
+            inputLock.lock();
+            try {
+                return in.readLong();
+            } finally {
+                releaseInput();
+                inputLock.unlock();
+            }
+        }
+
+        /**
+         * Handles the query status request for a hypothetical job of the given size, sending the available
+         * memory, pending tasks, and the predicted queue wait and completion time (in milliseconds, -1 if unknown).
+         *
+         * @param payloadSize the size of the hypothetical job
+         * @throws IOException if an I/O error occurs while sending the response
+         */
+        private void handleQueryStatusEstimate(long payloadSize) throws IOException {
+            long memory;
+            int tasks;
+            long waitNanos;
+            long executionNanos;
+
+            statusLock.lock();
+            try {
+                memory = availableMemory;
+                tasks = pendingTasks;
+                waitNanos = workloadStats.estimateWaitNanos(payloadSize, availableMemory, TOTAL_MEMORY);
+                executionNanos = workloadStats.estimateExecutionNanos(payloadSize);
+            } finally {
+                statusLock.unlock();
+            }
+
+            long completionNanos = waitNanos < 0 || executionNanos < 0 ? -1 : waitNanos + executionNanos;
+
+            outputLock.lock();
+            try {
+                out.writeLong(memory);
+                out.writeInt(tasks);
+                out.writeLong(waitNanos < 0 ? -1 : waitNanos / 1_000_000);
+                out.writeLong(completionNanos < 0 ? -1 : completionNanos / 1_000_000);
+                out.flush();
             } finally {
                 outputLock.unlock();
             }
@@ -350,10 +1698,20 @@ public class CentralServer {
          * @throws IOException if an I/O error occurs while sending the response
          */
         private void handleQueryStatus() throws IOException {
+            long memory;
+            int tasks;
+            statusLock.lock();
+            try {
+                memory = availableMemory;
+                tasks = pendingTasks;
+            } finally {
+                statusLock.unlock();
+            }
+
             outputLock.lock();
             try {
-                out.writeInt(availableMemory);
-                out.writeInt(pendingTasks);
+                out.writeLong(memory);
+                out.writeInt(tasks);
                 out.flush();
             } finally {
                 outputLock.unlock();
@@ -1,31 +1,48 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 
 /**
  * The Client class represents a client that interacts with a server.
  * It implements the ClientInterface interface.
  */
 public class Client implements ClientAPI {
+    private static final int CHUNK_SIZE = Integer.getInteger("faas.chunkSize", 1024 * 1024);
+    private static final int MAX_CHUNK_RETRIES = 3;
     private Lock inputLock = new ReentrantLock();
     private Lock outputLock = new ReentrantLock();
     public List<String> taskFiles = getFilesInDirectory("TestTaskFiles/Tasks/");
     private String name;
+    private String host;
+    private int port;
     private Socket socket;
     private DataInputStream in;
     private DataOutputStream out;
+    private Socket statusSocket = null;
+    private FileHashIndex fileHashIndex = new FileHashIndex();
     
     public Client() throws UnknownHostException, IOException {
-        this.socket = new Socket("localhost", 8080);
+        this("localhost", 8080);
+    }
+
+    public Client(String host, int port) throws UnknownHostException, IOException {
+        this.host = host;
+        this.port = port;
+        this.socket = new Socket(host, port);
         this.in = new DataInputStream(socket.getInputStream());
         this.out = new DataOutputStream(socket.getOutputStream());
     }
@@ -58,10 +75,18 @@ public class Client implements ClientAPI {
      * @throws IOException if an I/O error occurs while executing the task
      */
     public void executeTask(String taskFile) throws IOException {
-        byte[] task = createTask(taskFile);
-        sendTaskToServer(task);
+        if (!sendTaskToServer("EXECUTE_TASK_HASHED", taskFile)) return;
 
-        if (!readMemoryAvailability()) {
+        String admission = readAdmission();
+        if (admission.equals("BAD_HASH")) {
+            rejectedTask(taskFile);
+            return;
+        }
+        if (admission.equals("THROTTLED")) {
+            System.out.println("Upload rate exceeded, try again later.");
+            return;
+        }
+        if (!admission.equals("ADMITTED")) {
             System.out.println("Not enough memory available to execute task.");
             return;
         }
@@ -72,15 +97,347 @@ public class Client implements ClientAPI {
     }
 
     /**
-     * Reads the availability of memory from the input stream.
+     * Executes a small task in a single round trip: the task is sent together with the request, and the
+     * server answers with its decision and the result at once. The server runs small tasks in micro-batches,
+     * so this is the cheapest way to run many tiny tasks. A task the server does not batch, because it is
+     * too large or jobs like it run too long, is sent again with executeTask.
+     * 
+     * @param taskFile the file containing the task to be executed
+     * @throws IOException if an I/O error occurs while executing the task
+     */
+    public void executeSmallTask(String taskFile) throws IOException {
+        byte[] task = createTask(taskFile);
+        ByteArrayOutputStream request = new ByteArrayOutputStream(task.length + 32);
+        DataOutputStream requestOut = new DataOutputStream(request);
+        requestOut.writeUTF("EXECUTE_SMALL");
+        requestOut.writeInt(task.length);
+        requestOut.write(task);
+
+        byte[] result = null;
+        boolean notBatched = false;
+        outputLock.lock();
+        inputLock.lock();
+        try {
+            request.writeTo(out);
+            out.flush();
+
+            String decision = in.readUTF();
+            if (!isValidResponse(decision)) return;
+            notBatched = decision.equals("TOO_LARGE") || decision.equals("TOO_SLOW");
+            if (!notBatched && !decision.equals("ADMITTED")) {
+                System.out.println("Not enough memory available to execute task.");
+                return;
+            }
+
+            if (!notBatched) {
+                int length = in.readInt();
+                if (length == 0) {
+                    System.out.println("Task failed.");
+                    return;
+                }
+                result = new byte[length];
+                in.readFully(result);
+            }
+        } finally {
+            inputLock.unlock();
+            outputLock.unlock();
+        }
+
+        if (notBatched) executeTask(taskFile);
+        else processResult(taskFile, result);
+    }
+
+    /**
+     * Submits a task without waiting for its result.
+     * 
+     * @param taskFile the file containing the task to be executed
+     * @return the ID of the job, or -1 if the task was not admitted
+     * @throws IOException if an I/O error occurs while submitting the task
+     */
+    public long executeDetached(String taskFile) throws IOException {
+        if (!sendTaskToServer("EXECUTE_DETACHED_HASHED", taskFile)) return -1;
+
+        inputLock.lock();
+        try {
+            String admission = in.readUTF();
+            if (admission.equals("ADMITTED")) return in.readLong();
+
+            if (admission.equals("BAD_HASH")) rejectedTask(taskFile);
+            else if (admission.equals("THROTTLED")) System.out.println("Upload rate exceeded, try again later.");
+            else System.out.println("Not enough memory available to execute task.");
+            return -1;
+        } finally {
+            inputLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a chunked upload of a task, to be sent with resumeUpload.
+     * 
+     * @param taskFile the file containing the task to be uploaded
+     * @return the ID of the upload, or -1 if the server rejected it
+     * @throws IOException if an I/O error occurs while starting the upload
+     */
+    public long beginUpload(String taskFile) throws IOException {
+        long size = new File("TestTaskFiles/Tasks/" + taskFile).length();
+
+        outputLock.lock();
+        inputLock.lock();
+        try {
+            out.writeUTF("BEGIN_UPLOAD");
+            out.writeLong(size);
+            out.flush();
+
+            if (!isValidResponse(in.readUTF())) return -1;
+
+            String answer = in.readUTF();
+            if (answer.equals("TOO_MANY_UPLOADS")) {
+                System.out.println("Too many uploads in progress, finish or abandon one first.");
+                return -1;
+            }
+            if (!answer.equals("STARTED")) {
+                System.out.println("Task is too large to be executed.");
+                return -1;
+            }
+            return in.readLong();
+        } finally {
+            inputLock.unlock();
+            outputLock.unlock();
+        }
+    }
+
+    /**
+     * Queries how much of an upload the server has received, e.g. after reconnecting.
+     * 
+     * @param uploadId the ID returned by beginUpload
+     * @return the offset to continue the upload from, or -1 if the upload is unknown
+     * @throws IOException if an I/O error occurs while querying the upload
+     */
+    public long queryUpload(long uploadId) throws IOException {
+        outputLock.lock();
+        inputLock.lock();
+        try {
+            out.writeUTF("QUERY_UPLOAD");
+            out.writeLong(uploadId);
+            out.flush();
+
+            if (!isValidResponse(in.readUTF())) return -1;
+
+            if (in.readUTF().equals("UNKNOWN")) return -1;
+            long offset = in.readLong();
+            in.readLong();
+            return offset;
+        } finally {
+            inputLock.unlock();
+            outputLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the part of a task the server has not received yet, in checksummed chunks.
+     * A chunk that arrives corrupted is sent again; if the connection drops, the upload can be
+     * resumed from a new connection with the same upload ID.
      * 
-     * @return true if memory is available, false otherwise.
+     * @param uploadId the ID returned by beginUpload
+     * @param taskFile the file containing the task being uploaded
+     * @return true if the whole task was uploaded, false otherwise
+     * @throws IOException if an I/O error occurs while uploading the task
+     */
+    public boolean resumeUpload(long uploadId, String taskFile) throws IOException {
+        long offset = queryUpload(uploadId);
+        if (offset == -1) return false;
+
+        int retries = 0;
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try (RandomAccessFile file = new RandomAccessFile("TestTaskFiles/Tasks/" + taskFile, "r")) {
+            long size = file.length();
+            while (offset < size) {
+                int length = (int) Math.min(CHUNK_SIZE, size - offset);
+                file.seek(offset);
+                file.readFully(chunk, 0, length);
+                CRC32 crc = new CRC32();
+                crc.update(chunk, 0, length);
+
+                String answer;
+                long nextOffset;
+                outputLock.lock();
+                inputLock.lock();
+                try {
+                    out.writeUTF("UPLOAD_CHUNK");
+                    out.writeLong(uploadId);
+                    out.writeLong(offset);
+                    out.writeInt(length);
+                    out.write(chunk, 0, length);
+                    out.writeLong(crc.getValue());
+                    out.flush();
+
+                    if (!isValidResponse(in.readUTF())) return false;
+
+                    answer = in.readUTF();
+                    if (answer.equals("UNKNOWN")) {
+                        System.out.println("Upload " + uploadId + " expired.");
+                        return false;
+                    }
+                    nextOffset = in.readLong();
+                } finally {
+                    inputLock.unlock();
+                    outputLock.unlock();
+                }
+
+                if (answer.equals("THROTTLED")) {
+                    sleepBeforeRetry();
+                } else if (nextOffset > offset) {
+                    retries = 0;
+                } else if (++retries > MAX_CHUNK_RETRIES) {
+                    System.out.println("Upload " + uploadId + " failed at offset " + offset + " (" + answer + ").");
+                    return false;
+                }
+                offset = nextOffset;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits a little before sending a throttled chunk again.
+     */
+    private void sleepBeforeRetry() throws IOException {
+        try {
+            Thread.sleep(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while uploading", e);
+        }
+    }
+
+    /**
+     * Executes a completely uploaded task as a detached job.
+     * 
+     * @param uploadId the ID returned by beginUpload
+     * @return the ID of the job, or -1 if the task was not admitted
+     * @throws IOException if an I/O error occurs while submitting the task
+     */
+    public long executeUpload(long uploadId) throws IOException {
+        outputLock.lock();
+        inputLock.lock();
+        try {
+            out.writeUTF("EXECUTE_UPLOAD");
+            out.writeLong(uploadId);
+            out.flush();
+
+            if (!isValidResponse(in.readUTF())) return -1;
+
+            String admission = in.readUTF();
+            if (admission.equals("ADMITTED")) return in.readLong();
+
+            if (admission.equals("NO_MEMORY")) System.out.println("Not enough memory available to execute task.");
+            else System.out.println("Upload " + uploadId + " is " + admission + ".");
+            return -1;
+        } finally {
+            inputLock.unlock();
+            outputLock.unlock();
+        }
+    }
+
+    /**
+     * Fetches the result of a detached job.
+     * 
+     * @param jobId the ID returned by executeDetached
+     * @return the result of the job, or null if it is not available (pending, failed or unknown)
+     * @throws IOException if an I/O error occurs while fetching the result
+     */
+    public byte[] getResult(long jobId) throws IOException {
+        outputLock.lock();
+        inputLock.lock();
+        try {
+            out.writeUTF("GET_RESULT");
+            out.writeLong(jobId);
+            out.flush();
+
+            if (!isValidResponse(in.readUTF())) return null;
+
+            String status = in.readUTF();
+            if (!status.equals("DONE")) {
+                System.out.println("Job " + jobId + " is " + status + ".");
+                return null;
+            }
+
+            long length = in.readLong();
+            if (length < 0 || length > Integer.MAX_VALUE - 8) throw new IOException("Invalid result size: " + length);
+            byte[] result = new byte[(int) length];
+            in.readFully(result);
+            return result;
+        } finally {
+            inputLock.unlock();
+            outputLock.unlock();
+        }
+    }
+
+    /**
+     * Lists the detached jobs of the user.
+     * 
+     * @return the jobs of the user, oldest first
+     * @throws IOException if an I/O error occurs while listing the jobs
+     */
+    public List<JobInfo> listJobs() throws IOException {
+        outputLock.lock();
+        inputLock.lock();
+        try {
+            out.writeUTF("LIST_JOBS");
+            out.flush();
+
+            List<JobInfo> jobs = new ArrayList<>();
+            if (!isValidResponse(in.readUTF())) return jobs;
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                jobs.add(new JobInfo(in.readLong(), in.readUTF(), in.readLong(), in.readLong()));
+            }
+            return jobs;
+        } finally {
+            inputLock.unlock();
+            outputLock.unlock();
+        }
+    }
+
+    /**
+     * Queries the resource usage of the user.
+     * 
+     * @return the usage since the server started, followed by the usage over the last hour
+     * @throws IOException if an I/O error occurs while communicating with the service.
+     */
+    public UsageSummary[] queryUsage() throws IOException {
+        outputLock.lock();
+        inputLock.lock();
+        try {
+            out.writeUTF("QUERY_USAGE");
+            out.flush();
+
+            if (!isValidResponse(in.readUTF())) return null;
+
+            UsageSummary[] usage = new UsageSummary[2];
+            for (int i = 0; i < usage.length; i++) {
+                usage[i] = new UsageSummary(in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+            }
+            return usage;
+        } finally {
+            inputLock.unlock();
+            outputLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the admission decision of the server for the task that was just sent.
+     * 
+     * @return "ADMITTED", "NO_MEMORY" if there is not enough memory available,
+     *         "THROTTLED" if the upload rate of the user was exceeded,
+     *         or "BAD_HASH" if the task did not match the hash it was announced with.
      * @throws IOException if an I/O error occurs.
      */
-    private boolean readMemoryAvailability() throws IOException {
+    private String readAdmission() throws IOException {
         inputLock.lock();
         try {
-            return in.readBoolean();
+            return in.readUTF();
         } finally {
             inputLock.unlock();
         }
@@ -116,6 +473,7 @@ public class Client implements ClientAPI {
             name = username;
             return true;
         }
+        if (result.equals("LOGIN_BUSY")) System.out.println("Server busy, try again later.");
         
         return false;
     }
@@ -137,7 +495,9 @@ public class Client implements ClientAPI {
             out.writeUTF(password);
             out.flush();
 
-            return in.readUTF().equals("REGISTER_SUCCESS");
+            String result = in.readUTF();
+            if (result.equals("REGISTER_BUSY")) System.out.println("Server busy, try again later.");
+            return result.equals("REGISTER_SUCCESS");
         }
         finally {
             outputLock.unlock();
@@ -164,28 +524,43 @@ public class Client implements ClientAPI {
     }
 
     /**
-     * Sends a task to the server for execution.
+     * Sends a task to the server for execution, with hash negotiation: the server is first sent the
+     * length and SHA-256 hash of the task, and only receives the task itself if it answers "NEED".
+     * If it answers "THROTTLED", the task is not sent and there is no admission decision to read.
+     * Hashes are kept in the FileHashIndex, so unchanged task files are not read again when the server has them.
      * 
-     * @param task the task to be sent as a byte array
-     * @return true if the task was sent successfully, false otherwise
+     * @param requestType the request used to submit the task (EXECUTE_TASK_HASHED or EXECUTE_DETACHED_HASHED)
+     * @param taskFile the file containing the task
+     * @return true if the task was sent successfully, false otherwise (including when it was throttled)
      * @throws IOException if an I/O error occurs while sending the task
      */
-    private boolean sendTaskToServer(byte[] task) throws IOException {
+    private boolean sendTaskToServer(String requestType, String taskFile) throws IOException {
+        File file = new File("TestTaskFiles/Tasks/" + taskFile);
+        int length = (int) file.length();
+        byte[] hash = fileHashIndex.hash(file);
+
         outputLock.lock();
         inputLock.lock();
         try {
-            out.writeUTF("EXECUTE_TASK");
+            out.writeUTF(requestType);
             out.flush();
 
-            if (in.readUTF().equals("INVALID")) {
-                System.out.println("Invalid user.");
-                return false;
-            }
+            if (!isValidResponse(in.readUTF())) return false;
 
-            out.writeInt(task.length);
-            out.write(task);
+            out.writeInt(length);
+            out.write(hash);
             out.flush();
 
+            String answer = in.readUTF();
+            if (answer.equals("THROTTLED")) {
+                System.out.println("Upload rate exceeded, try again later.");
+                return false;
+            }
+            if (answer.equals("NEED")) {
+                out.write(Arrays.copyOf(createTask(taskFile), length));
+                out.flush();
+            }
+
             return true;
         } finally {
             inputLock.unlock();
@@ -193,6 +568,33 @@ public class Client implements ClientAPI {
         }
     }
 
+    /**
+     * Handles a task the server rejected because it did not match its hash, which happens when the
+     * task file changes while it is being sent: its hash is computed again on the next submission.
+     */
+    private void rejectedTask(String taskFile) throws IOException {
+        fileHashIndex.invalidate(new File("TestTaskFiles/Tasks/" + taskFile));
+        System.out.println("Task file changed while it was being sent, try again.");
+    }
+
+    /**
+     * Checks the server's answer to a request that requires a logged in user.
+     * 
+     * @param response the response read from the server
+     * @return true if the request was accepted, false if the user is invalid or was throttled
+     */
+    private boolean isValidResponse(String response) {
+        if (response.equals("INVALID")) {
+            System.out.println("Invalid user.");
+            return false;
+        }
+        if (response.equals("THROTTLED")) {
+            System.out.println("Too many requests, try again later.");
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Reads the result from the server.
      * 
@@ -250,12 +652,9 @@ public class Client implements ClientAPI {
             out.writeUTF("QUERY_STATUS");
             out.flush();
 
-            if (in.readUTF().equals("INVALID")) {
-                System.out.println("Invalid user.");
-                return null;
-            }
+            if (!isValidResponse(in.readUTF())) return null;
     
-            int availableMemory = in.readInt();
+            long availableMemory = in.readLong();
             int pendingTasks = in.readInt();
     
             return new ServiceStatus(availableMemory, pendingTasks);
@@ -265,6 +664,118 @@ public class Client implements ClientAPI {
         }
     }
 
+    /**
+     * Queries the service status together with the predicted queue wait and completion time
+     * of a job with the given input size.
+     * 
+     * @param payloadSize the size of the job's input, in bytes
+     * @return The ServiceStatus object containing the available memory, pending tasks and estimates.
+     * @throws IOException if an I/O error occurs while communicating with the service.
+     */
+    public ServiceStatus queryServiceStatus(long payloadSize) throws IOException {
+        outputLock.lock();
+        inputLock.lock();
+        try {
+            out.writeUTF("QUERY_STATUS_ETA");
+            out.writeLong(payloadSize);
+            out.flush();
+
+            if (!isValidResponse(in.readUTF())) return null;
+
+            long availableMemory = in.readLong();
+            int pendingTasks = in.readInt();
+            long estimatedWaitMillis = in.readLong();
+            long estimatedCompletionMillis = in.readLong();
+
+            return new ServiceStatus(availableMemory, pendingTasks, estimatedWaitMillis, estimatedCompletionMillis);
+        } finally {
+            inputLock.unlock();
+            outputLock.unlock();
+        }
+    }
+
+    /**
+     * Subscribes to status updates. A token is requested on the main connection and redeemed on a
+     * dedicated connection, read by a background thread that applies the pushed deltas and calls the listener.
+     * 
+     * @param listener the listener that receives the updates
+     * @param intervalMillis the minimum interval between two updates
+     * @return true if the subscription was accepted, false otherwise
+     * @throws IOException if an I/O error occurs while subscribing
+     */
+    public boolean subscribeStatus(StatusListener listener, int intervalMillis) throws IOException {
+        String token;
+        outputLock.lock();
+        inputLock.lock();
+        try {
+            out.writeUTF("SUBSCRIBE_STATUS");
+            out.flush();
+
+            if (!isValidResponse(in.readUTF())) return false;
+            token = in.readUTF();
+        } finally {
+            inputLock.unlock();
+            outputLock.unlock();
+        }
+
+        unsubscribeStatus();
+        Socket subscription = new Socket(host, port);
+        DataOutputStream subscriptionOut = new DataOutputStream(subscription.getOutputStream());
+        DataInputStream subscriptionIn = new DataInputStream(new BufferedInputStream(subscription.getInputStream()));
+        subscriptionOut.writeUTF("ATTACH_STATUS");
+        subscriptionOut.writeUTF(token);
+        subscriptionOut.writeInt(intervalMillis);
+        subscriptionOut.flush();
+
+        if (!subscriptionIn.readUTF().equals("SUBSCRIBED")) {
+            subscription.close();
+            return false;
+        }
+
+        statusSocket = subscription;
+        Thread reader = new Thread(() -> readStatusUpdates(subscription, subscriptionIn, listener), "status-subscription");
+        reader.setDaemon(true);
+        reader.start();
+        return true;
+    }
+
+    /**
+     * Reads the status deltas pushed by the server until the subscription is closed, then tells the listener.
+     */
+    private void readStatusUpdates(Socket subscription, DataInputStream subscriptionIn, StatusListener listener) {
+        long availableMemory = 0;
+        int pendingTasks = 0;
+        IOException error = null;
+        try {
+            while (true) {
+                byte mask = subscriptionIn.readByte();
+                if ((mask & StatusPublisher.MEMORY_CHANGED) != 0) availableMemory = subscriptionIn.readLong();
+                if ((mask & StatusPublisher.PENDING_CHANGED) != 0) pendingTasks = subscriptionIn.readInt();
+                listener.onStatus(new ServiceStatus(availableMemory, pendingTasks));
+            }
+        } catch (IOException e) {
+            if (!subscription.isClosed()) error = e;
+        } finally {
+            try {
+                subscription.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            listener.onClosed(error);
+        }
+    }
+
+    /**
+     * Cancels the status subscription, if any.
+     * 
+     * @throws IOException if an I/O error occurs while closing the subscription
+     */
+    public void unsubscribeStatus() throws IOException {
+        Socket subscription = statusSocket;
+        statusSocket = null;
+        if (subscription != null) subscription.close();
+    }
+
     /**
      * Logs out the user by sending a "LOGOUT" message to the server and closing the connection.
      * This method should be called when the user wants to end the session and disconnect from the server.
@@ -279,6 +790,7 @@ public class Client implements ClientAPI {
             
         } finally {
             outputLock.unlock();
+            unsubscribeStatus();
             in.close();
             out.close();
             socket.close();
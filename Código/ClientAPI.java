@@ -1,4 +1,5 @@
 import java.io.IOException;
+import java.util.List;
 
 /**
  * The ClientInterface interface represents the interface for interacting with a client in a distributed system.
@@ -33,6 +34,86 @@ public interface ClientAPI {
      */
     public void executeTask(String taskFile) throws IOException;
 
+    /**
+     * Executes a small task in a single round trip, batched on the server with other small tasks.
+     *
+     * @param taskFile the file containing the task to be executed
+     * @throws IOException if an I/O error occurs during task execution
+     */
+    public void executeSmallTask(String taskFile) throws IOException;
+
+    /**
+     * Submits the task specified by the taskFile without waiting for its result.
+     *
+     * @param taskFile the file containing the task to be executed
+     * @return the ID of the job, or -1 if the task was not admitted
+     * @throws IOException if an I/O error occurs while submitting the task
+     */
+    public long executeDetached(String taskFile) throws IOException;
+
+    /**
+     * Fetches the result of a detached job.
+     *
+     * @param jobId the ID returned by executeDetached
+     * @return the result of the job, or null if it is not available (pending, failed or unknown)
+     * @throws IOException if an I/O error occurs while fetching the result
+     */
+    public byte[] getResult(long jobId) throws IOException;
+
+    /**
+     * Starts a chunked upload of a task, for tasks too large to send in one piece
+     * or over connections that may drop.
+     *
+     * @param taskFile the file containing the task to be uploaded
+     * @return the ID of the upload, or -1 if the server rejected it
+     * @throws IOException if an I/O error occurs while starting the upload
+     */
+    public long beginUpload(String taskFile) throws IOException;
+
+    /**
+     * Queries how much of an upload the server has received.
+     *
+     * @param uploadId the ID returned by beginUpload
+     * @return the offset to continue the upload from, or -1 if the upload is unknown
+     * @throws IOException if an I/O error occurs while querying the upload
+     */
+    public long queryUpload(long uploadId) throws IOException;
+
+    /**
+     * Sends the rest of an upload, starting from the offset the server has received.
+     *
+     * @param uploadId the ID returned by beginUpload
+     * @param taskFile the file containing the task being uploaded
+     * @return true if the whole task was uploaded, false otherwise
+     * @throws IOException if an I/O error occurs while uploading the task
+     */
+    public boolean resumeUpload(long uploadId, String taskFile) throws IOException;
+
+    /**
+     * Executes a completely uploaded task as a detached job, whose result is fetched with getResult.
+     *
+     * @param uploadId the ID returned by beginUpload
+     * @return the ID of the job, or -1 if the task was not admitted
+     * @throws IOException if an I/O error occurs while submitting the task
+     */
+    public long executeUpload(long uploadId) throws IOException;
+
+    /**
+     * Lists the detached jobs of the client.
+     *
+     * @return the jobs of the client, oldest first
+     * @throws IOException if an I/O error occurs while listing the jobs
+     */
+    public List<JobInfo> listJobs() throws IOException;
+
+    /**
+     * Queries the resource usage recorded for the client by the server's usage ledger.
+     *
+     * @return the usage since the server started, followed by the usage over the last hour
+     * @throws IOException if an I/O error occurs during the usage query
+     */
+    public UsageSummary[] queryUsage() throws IOException;
+
     /**
      * Queries the status of the service.
      *
@@ -41,6 +122,35 @@ public interface ClientAPI {
      */
     public ServiceStatus queryServiceStatus() throws IOException;
 
+    /**
+     * Queries the status of the service, together with the predicted queue wait
+     * and completion time of a job with the given input size.
+     *
+     * @param payloadSize the size of the job's input, in bytes
+     * @return the current status of the service, including the estimates
+     * @throws IOException if an I/O error occurs during the status query
+     */
+    public ServiceStatus queryServiceStatus(long payloadSize) throws IOException;
+
+    /**
+     * Subscribes to the status of the service. The server pushes a new status whenever the
+     * available memory or the number of pending tasks changes, at most once per interval.
+     * The listener's onClosed is called when the subscription ends, whichever side ends it.
+     *
+     * @param listener the listener that receives the updates
+     * @param intervalMillis the minimum interval between two updates
+     * @return true if the subscription was accepted, false otherwise
+     * @throws IOException if an I/O error occurs while subscribing
+     */
+    public boolean subscribeStatus(StatusListener listener, int intervalMillis) throws IOException;
+
+    /**
+     * Cancels the status subscription, if any.
+     *
+     * @throws IOException if an I/O error occurs while closing the subscription
+     */
+    public void unsubscribeStatus() throws IOException;
+
     /**
      * Logs out the client from the system.
      *
@@ -70,6 +70,7 @@ public class ClientUI {
                         break;
                     case 2:
                         ServiceStatus ss = c.queryServiceStatus();
+                        if (ss == null) break;
 
                         System.out.println("Service status:");
                         System.out.println("Available memory: " + ss.availableMemory);
@@ -0,0 +1,115 @@
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * A bounded, short-lived cache of recently verified credentials, so that reconnecting clients
+ * do not pay for a full password hash derivation every time.
+ *
+ * The cache never holds passwords: it keeps an HMAC of the credentials under a key that only
+ * lives in this process, and compares it in constant time.
+ */
+public class CredentialCache {
+    private final int maxEntries;
+    private final long timeToLiveNanos;
+    private final SecretKey key;
+    private final ThreadLocal<Mac> macs;
+
+    private final Map<String, CachedCredential> entries;
+    private final Lock cacheLock = new ReentrantLock();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maxEntries the maximum number of users kept in the cache
+     * @param timeToLiveMillis how long a successful verification stays valid
+     */
+    public CredentialCache(int maxEntries, long timeToLiveMillis) {
+        this.maxEntries = maxEntries;
+        this.timeToLiveNanos = timeToLiveMillis * 1_000_000L;
+        try {
+            this.key = KeyGenerator.getInstance("HmacSHA256").generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+        this.macs = ThreadLocal.withInitial(this::newMac);
+        this.entries = new LinkedHashMap<String, CachedCredential>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedCredential> eldest) {
+                return size() > CredentialCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Checks if the credentials were successfully verified recently.
+     *
+     * @return true if the credentials are in the cache and have not expired
+     */
+    public boolean contains(String username, String password) {
+        if (maxEntries <= 0) return false;
+        byte[] fingerprint = fingerprint(username, password);
+
+        CachedCredential entry;
+        cacheLock.lock();
+        try {
+            entry = entries.get(username);
+        } finally {
+            cacheLock.unlock();
+        }
+
+        return entry != null
+                && System.nanoTime() - entry.expiresAt < 0
+                && MessageDigest.isEqual(entry.fingerprint, fingerprint);
+    }
+
+    /**
+     * Remembers credentials that were just verified.
+     */
+    public void put(String username, String password) {
+        if (maxEntries <= 0) return;
+        CachedCredential entry = new CachedCredential(fingerprint(username, password), System.nanoTime() + timeToLiveNanos);
+
+        cacheLock.lock();
+        try {
+            entries.put(username, entry);
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    private byte[] fingerprint(String username, String password) {
+        Mac mac = macs.get();
+        mac.update(username.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private static class CachedCredential {
+        private final byte[] fingerprint;
+        private final long expiresAt;
+
+        CachedCredential(byte[] fingerprint, long expiresAt) {
+            this.fingerprint = fingerprint;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
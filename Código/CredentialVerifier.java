@@ -0,0 +1,93 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Runs the slow password hash derivations on a dedicated, bounded pool so that a login storm
+ * (e.g. every client reconnecting after a restart) cannot starve job execution.
+ * Recent successful verifications are served from a CredentialCache.
+ *
+ * Unknown users are checked against a dummy hash, so a failed login takes as long whether or not
+ * the user exists, and logins cannot be used to find out which usernames are registered.
+ */
+public class CredentialVerifier {
+    /**
+     * The outcome of a verification. BUSY means the pool queue was full and nothing was checked.
+     */
+    public enum Verification { VALID, INVALID, BUSY }
+
+    private final ThreadExecutor hashingPool;
+    private final CredentialCache cache;
+    private final byte[] dummySalt = PasswordHasher.newSalt();
+    private final byte[] dummyHash = PasswordHasher.hash("", dummySalt, PasswordHasher.DEFAULT_ITERATIONS);
+
+    /**
+     * Creates a verifier.
+     *
+     * @param threads the number of threads deriving password hashes
+     * @param maxQueued the number of derivations that may wait for a thread before new ones are rejected
+     * @param cache the cache of recent successful verifications
+     */
+    public CredentialVerifier(int threads, int maxQueued, CredentialCache cache) {
+        this.hashingPool = new ThreadExecutor(threads, maxQueued);
+        this.cache = cache;
+    }
+
+    /**
+     * Checks the password of a user.
+     *
+     * @param user the user to check, or null if no such user exists
+     * @param password the password sent by the client
+     * @return VALID or INVALID, or BUSY if the verification could not be queued
+     */
+    public Verification verify(User user, String password) {
+        if (user != null && cache.contains(user.getUsername(), password)) return Verification.VALID;
+
+        Boolean valid = runOnPool(() -> {
+            if (user != null) return user.verifyPassword(password);
+            PasswordHasher.verify(password, dummySalt, PasswordHasher.DEFAULT_ITERATIONS, dummyHash);
+            return false;
+        });
+        if (valid == null) return Verification.BUSY;
+        if (!valid) return Verification.INVALID;
+
+        cache.put(user.getUsername(), password);
+        return Verification.VALID;
+    }
+
+    /**
+     * Creates a user, hashing its password on the pool.
+     *
+     * @return the new user, or null if the pool was too busy
+     */
+    public User createUser(String username, String password) {
+        return runOnPool(() -> new User(username, password));
+    }
+
+    /**
+     * Stops the hashing pool once the queued derivations are done.
+     */
+    public void shutdown() {
+        hashingPool.shutdown();
+    }
+
+    /**
+     * Runs the computation on the hashing pool and waits for its result.
+     * Anything the computation throws, errors included, is rethrown to the caller wrapped in a
+     * CompletionException, so the caller never waits forever.
+     *
+     * @return the result of the computation, or null if the pool queue was full
+     */
+    private <T> T runOnPool(Supplier<T> computation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        boolean queued = hashingPool.trySubmitTask(() -> {
+            try {
+                result.complete(computation.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        if (!queued) return null;
+
+        return result.join();
+    }
+}
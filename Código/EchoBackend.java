@@ -0,0 +1,35 @@
+/**
+ * Returns every task as its own result, without calling JobFunction.
+ * Used by the benchmarks to measure the overhead of the server itself, optionally with a fixed
+ * execution time per job to stand in for a real job function.
+ */
+public class EchoBackend implements ExecutionBackend {
+    private final long jobMillis;
+
+    public EchoBackend() {
+        this(0);
+    }
+
+    /**
+     * @param jobMillis how long each job takes, in milliseconds
+     */
+    public EchoBackend(long jobMillis) {
+        this.jobMillis = jobMillis;
+    }
+
+    @Override
+    public byte[] execute(byte[] task) {
+        if (jobMillis > 0) {
+            try {
+                Thread.sleep(jobMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return task;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,21 @@
+import sd23.JobFunctionException;
+
+/**
+ * The ExecutionBackend interface represents the strategy used by the CentralServer to run a job.
+ * Implementations decide where JobFunction.execute actually runs (in the server JVM, in a child process, ...).
+ */
+public interface ExecutionBackend {
+    /**
+     * Executes a task and returns its result.
+     *
+     * @param task the bytes of the task to be executed
+     * @return the result of the task execution
+     * @throws JobFunctionException if the job fails or the backend could not run it
+     */
+    public byte[] execute(byte[] task) throws JobFunctionException;
+
+    /**
+     * Releases every resource held by the backend.
+     */
+    public void close();
+}
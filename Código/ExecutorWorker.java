@@ -0,0 +1,99 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+import sd23.JobFunction;
+import sd23.JobFunctionException;
+
+/**
+ * Entry point of the child JVMs started by the ProcessPoolBackend.
+ *
+ * Once warmed up, the worker writes READY followed by its heap after GC (long) on its standard output.
+ * It then reads tasks from its standard input and writes results to its standard output:
+ * <pre>
+ *   request:  int length, byte[length] task
+ *   response: byte status (OK or FAILED), then
+ *             OK:     int length, byte[length] result
+ *             FAILED: UTF message
+ *             followed by long usedHeap
+ * </pre>
+ * The reported heap is the memory the collector kept at its last collection, so the pool only sees memory
+ * that the jobs actually retain, not garbage that has not been collected yet.
+ * Anything the job prints on System.out is redirected to standard error so it cannot corrupt the protocol.
+ */
+public class ExecutorWorker {
+    public static final byte READY = 0;
+    public static final byte OK = 1;
+    public static final byte FAILED = 2;
+
+    public static void main(String[] args) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+
+        warmUp();
+        System.gc();
+        out.writeByte(READY);
+        out.writeLong(heapAfterGc());
+        out.flush();
+
+        while (true) {
+            byte[] task;
+            try {
+                task = new byte[in.readInt()];
+            } catch (EOFException e) {
+                return;
+            }
+            in.readFully(task);
+
+            try {
+                byte[] result = JobFunction.execute(task);
+                out.writeByte(OK);
+                out.writeInt(result.length);
+                out.write(result);
+            } catch (JobFunctionException | RuntimeException e) {
+                out.writeByte(FAILED);
+                out.writeUTF(String.valueOf(e.getMessage()));
+            }
+            out.writeLong(heapAfterGc());
+            out.flush();
+        }
+    }
+
+    /**
+     * Loads and initializes the job code so the first real task does not pay for class loading.
+     * The job itself is not run: JobFunction.execute sleeps for at least a second, which would only
+     * delay the moment the child becomes ready.
+     */
+    private static void warmUp() {
+        try {
+            ClassLoader loader = ExecutorWorker.class.getClassLoader();
+            Class.forName(JobFunction.class.getName(), true, loader);
+            Class.forName(JobFunctionException.class.getName(), true, loader);
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the heap in use right after the last collection, summed over the heap memory pools.
+     */
+    private static long heapAfterGc() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if (usage != null) used += usage.getUsed();
+        }
+        return used;
+    }
+}
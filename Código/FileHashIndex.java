@@ -0,0 +1,76 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the SHA-256 hash of the task files a client has sent, keyed by path and checked against
+ * the file's modification time and size, so a file is only hashed again after it changes.
+ */
+class FileHashIndex {
+    private final Map<String, IndexedFile> files = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the SHA-256 hash of a file, hashing it only if it is new or has changed.
+     *
+     * @param file the file to hash
+     * @return the hash of the file's contents
+     * @throws IOException if the file cannot be read
+     */
+    public byte[] hash(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        long modified = file.lastModified();
+        long size = file.length();
+
+        IndexedFile indexed = files.get(path);
+        if (indexed != null && indexed.modified == modified && indexed.size == size) return indexed.hash;
+
+        byte[] hash = digest(file);
+        files.put(path, new IndexedFile(modified, size, hash));
+        return hash;
+    }
+
+    /**
+     * Forgets a file, e.g. when the server reports that its contents did not match the indexed hash.
+     */
+    public void invalidate(File file) throws IOException {
+        files.remove(file.getCanonicalPath());
+    }
+
+    private static byte[] digest(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * The hash of a file, and the modification time and size it was computed for.
+     */
+    private static class IndexedFile {
+        private final long modified;
+        private final long size;
+        private final byte[] hash;
+
+        IndexedFile(long modified, long size, byte[] hash) {
+            this.modified = modified;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+import sd23.JobFunction;
+import sd23.JobFunctionException;
+
+/**
+ * Runs jobs directly in the server JVM, on the thread that handles the request.
+ */
+public class InProcessBackend implements ExecutionBackend {
+    /**
+     * Executes the task by calling JobFunction.execute on the current thread.
+     * Runtime errors raised by the job are reported as a JobFunctionException so that
+     * the caller can release the job's memory reservation like any other failure.
+     */
+    @Override
+    public byte[] execute(byte[] task) throws JobFunctionException {
+        try {
+            return JobFunction.execute(task);
+        } catch (RuntimeException e) {
+            throw new JobFunctionException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,24 @@
+/**
+ * Represents the state of a detached job, as listed by the server.
+ */
+class JobInfo {
+    public long jobId;
+    public String status;
+    public long resultSize;
+    public long submittedAt;
+
+    /**
+     * Constructs a JobInfo object.
+     * 
+     * @param jobId the identifier of the job
+     * @param status the status of the job (PENDING, DONE or FAILED)
+     * @param resultSize the size of the result, or 0 if there is none yet
+     * @param submittedAt when the job was submitted, in milliseconds since the epoch
+     */
+    public JobInfo(long jobId, String status, long resultSize, long submittedAt) {
+        this.jobId = jobId;
+        this.status = status;
+        this.resultSize = resultSize;
+        this.submittedAt = submittedAt;
+    }
+}
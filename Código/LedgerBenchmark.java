@@ -0,0 +1,54 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Measures how many usage records per second the UsageLedger can append from concurrent job threads.
+ * The ledger is written to a temporary directory, which is deleted at the end.
+ *
+ * Usage: java LedgerBenchmark [threads] [seconds] [users]
+ */
+public class LedgerBenchmark {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threadCount = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int userCount = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        Path directory = Files.createTempDirectory("usage-benchmark");
+        UsageLedger ledger = new UsageLedger(directory, 1024 * 1024);
+        String[] users = new String[userCount];
+        for (int i = 0; i < userCount; i++) {
+            users[i] = "user" + i;
+        }
+
+        LongAdder records = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            int offset = i;
+            threads[i] = new Thread(() -> {
+                long n = offset;
+                while (System.nanoTime() < deadline) {
+                    ledger.record(users[(int) (n % userCount)], 1024, 512, 1000, 2000, 3000, UsageLedger.SUCCESS);
+                    records.increment();
+                    n++;
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        ledger.close();
+        System.out.printf("%d threads: %.1f records/s%n", threadCount, records.sum() / (double) seconds);
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures login throughput of the CredentialVerifier, with and without the verified-credentials cache.
+ *
+ * Usage: java LoginBenchmark [clients] [seconds] [hashingThreads]
+ */
+public class LoginBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int hashingThreads = args.length > 2 ? Integer.parseInt(args[2]) : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+        System.out.println("PBKDF2 iterations: " + PasswordHasher.DEFAULT_ITERATIONS
+                + ", hashing threads: " + hashingThreads + ", clients: " + clients);
+
+        run("cold (no cache)", new CredentialVerifier(hashingThreads, 256, new CredentialCache(0, 0)), clients, seconds);
+        run("warm (cached)", new CredentialVerifier(hashingThreads, 256, new CredentialCache(10_000, 60_000)), clients, seconds);
+        System.exit(0);
+    }
+
+    private static void run(String name, CredentialVerifier verifier, int clients, int seconds) throws InterruptedException {
+        User[] users = new User[clients];
+        for (int i = 0; i < clients; i++) {
+            users[i] = verifier.createUser("user" + i, "password" + i);
+        }
+
+        AtomicLong valid = new AtomicLong();
+        AtomicLong busy = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            User user = users[i];
+            String password = "password" + i;
+            threads[i] = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    CredentialVerifier.Verification result = verifier.verify(user, password);
+                    if (result == CredentialVerifier.Verification.VALID) valid.incrementAndGet();
+                    else if (result == CredentialVerifier.Verification.BUSY) busy.incrementAndGet();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        System.out.printf("%-16s %12.1f logins/s  (%d busy rejections)%n", name, valid.get() / (double) seconds, busy.get());
+    }
+}
@@ -0,0 +1,150 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * Groups small work items into batches that a single worker thread handles back-to-back.
+ *
+ * Each worker has its own queue, and items are assigned to a worker by key, so the items of one key
+ * (e.g. one connection) are always handled in the order they were submitted.
+ *
+ * Batching is adaptive: a worker that finds items waiting takes them right away, so an idle server adds
+ * no latency. Only after a batch of more than one item, i.e. while items are arriving faster than they
+ * are handled, does the worker wait up to the maximum delay for the next batch to fill up.
+ *
+ * The handler may stop before the end of a batch (e.g. once it has run for long enough); the items it did
+ * not handle go back to the front of the worker's queue, so they are handled first, in order, by the next batch.
+ * The handler is expected to deal with the failure of a single item itself: if it throws, the worker cannot tell
+ * which items were handled, so it reports the error and drops the batch rather than handling items twice.
+ *
+ * @param <T> the type of the items
+ */
+public class MicroBatcher<T> {
+    private final List<Worker> workers = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final ToIntFunction<List<T>> batchHandler;
+
+    /**
+     * Creates the batcher and starts its workers.
+     *
+     * @param workerCount the number of worker threads
+     * @param maxBatchSize the maximum number of items in a batch
+     * @param maxDelayMicros how long a worker under load waits for a batch to fill up
+     * @param batchHandler handles a batch and returns how many of its items, from the start, were handled;
+     *                     the list is reused, so it must not be kept after the call
+     * @param name the prefix of the worker thread names
+     */
+    public MicroBatcher(int workerCount, int maxBatchSize, long maxDelayMicros, ToIntFunction<List<T>> batchHandler, String name) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.batchHandler = batchHandler;
+
+        for (int i = 0; i < workerCount; i++) {
+            Worker worker = new Worker();
+            workers.add(worker);
+            Thread thread = new Thread(worker, name + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    /**
+     * Queues an item on the worker assigned to its key.
+     *
+     * @param key the key of the item; items with the same key are handled in order
+     * @param item the item
+     */
+    public void submit(int key, T item) {
+        workers.get(Math.floorMod(key, workers.size())).submit(item);
+    }
+
+    /**
+     * Stops the worker threads. Items still queued are dropped.
+     */
+    public void close() {
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * A worker thread and its queue.
+     */
+    private class Worker implements Runnable {
+        private final ArrayDeque<T> queue = new ArrayDeque<>();
+        private final Lock queueLock = new ReentrantLock();
+        private final Condition itemsQueued = queueLock.newCondition();
+        private boolean lingering = false;
+
+        void submit(T item) {
+            queueLock.lock();
+            try {
+                queue.addLast(item);
+                if (queue.size() == 1 || queue.size() == maxBatchSize) itemsQueued.signal();
+            } finally {
+                queueLock.unlock();
+            }
+        }
+
+        /**
+         * Puts items that were taken but not handled back at the front of the queue, in their order.
+         */
+        private void requeue(List<T> items) {
+            queueLock.lock();
+            try {
+                for (int i = items.size() - 1; i >= 0; i--) {
+                    queue.addFirst(items.get(i));
+                }
+            } finally {
+                queueLock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<T> batch = new ArrayList<>(maxBatchSize);
+            try {
+                while (true) {
+                    queueLock.lock();
+                    try {
+                        while (queue.isEmpty()) {
+                            itemsQueued.await();
+                        }
+                        if (lingering) {
+                            long deadline = System.nanoTime() + maxDelayNanos;
+                            long wait;
+                            while (queue.size() < maxBatchSize && (wait = deadline - System.nanoTime()) > 0) {
+                                itemsQueued.awaitNanos(wait);
+                            }
+                        }
+                        while (batch.size() < maxBatchSize && !queue.isEmpty()) {
+                            batch.add(queue.pollFirst());
+                        }
+                    } finally {
+                        queueLock.unlock();
+                    }
+
+                    lingering = batch.size() > 1;
+                    int handled = batch.size();
+                    try {
+                        handled = batchHandler.applyAsInt(batch);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                    if (handled < batch.size()) requeue(batch.subList(handled, batch.size()));
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
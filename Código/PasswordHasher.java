@@ -0,0 +1,61 @@
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Derives and checks salted password hashes with PBKDF2-HMAC-SHA256.
+ */
+public class PasswordHasher {
+    public static final int DEFAULT_ITERATIONS = Integer.getInteger("faas.auth.iterations", 210_000);
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private PasswordHasher() {}
+
+    /**
+     * Generates a new random salt.
+     *
+     * @return the salt
+     */
+    public static byte[] newSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Derives the hash of a password. This is deliberately slow.
+     *
+     * @param password the password to hash
+     * @param salt the salt of the user
+     * @param iterations the number of PBKDF2 iterations
+     * @return the derived hash
+     */
+    public static byte[] hash(String password, byte[] salt, int iterations) {
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_LENGTH);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * Checks a password against a stored hash, comparing in constant time.
+     *
+     * @param password the password to check
+     * @param salt the salt of the user
+     * @param iterations the number of PBKDF2 iterations used for the stored hash
+     * @param expectedHash the stored hash
+     * @return true if the password matches the hash, false otherwise
+     */
+    public static boolean verify(String password, byte[] salt, int iterations, byte[] expectedHash) {
+        return MessageDigest.isEqual(hash(password, salt, iterations), expectedHash);
+    }
+}
@@ -0,0 +1,384 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import sd23.JobFunctionException;
+
+/**
+ * Runs jobs in a pool of pre-started, pre-warmed child JVMs (see ExecutorWorker), so that a job that leaks
+ * memory or crashes cannot take the server down and its allocations stay out of the server heap.
+ *
+ * A background thread keeps at least {@code warmSpares} idle children ready, starting the missing ones in
+ * parallel, so jobs do not wait for a JVM to start. A child is recycled after {@code maxJobsPerProcess} jobs,
+ * when its heap after GC grew more than {@code maxHeapGrowth} bytes since it became ready, or as soon as it
+ * stops answering. A child that runs a job for longer than {@code jobTimeoutMillis} is killed by a watchdog
+ * thread, so a hung job cannot hold its ClientHandler forever. The watchdog also kills a child that is not
+ * ready within {@code startupTimeoutMillis}, so a JVM that hangs while starting cannot hold its pool slot.
+ */
+public class ProcessPoolBackend implements ExecutionBackend {
+    private final List<String> command;
+    private final int maxProcesses;
+    private final int warmSpares;
+    private final int maxJobsPerProcess;
+    private final long maxHeapGrowth;
+    private final long jobTimeoutNanos;
+    private final long startupTimeoutNanos;
+
+    private final LinkedList<ChildProcess> idleProcesses = new LinkedList<>();
+    private final List<ChildProcess> busyProcesses = new ArrayList<>();
+    private final List<ChildProcess> startingChildren = new ArrayList<>();
+    private int liveProcesses = 0;
+    private int startingProcesses = 0;
+    private int waitingJobs = 0;
+    private boolean closed = false;
+    private final Lock poolLock = new ReentrantLock();
+    private final Condition processAvailable = poolLock.newCondition();
+    private final Condition sparesNeeded = poolLock.newCondition();
+    private final Condition deadlinesChanged = poolLock.newCondition();
+
+    /**
+     * Creates the pool and starts warming the spare children in the background.
+     *
+     * @param maxProcesses the maximum number of child JVMs alive at the same time
+     * @param warmSpares the number of idle children kept ready for incoming jobs
+     * @param maxJobsPerProcess the number of jobs after which a child is replaced
+     * @param maxHeapGrowth the growth (in bytes) of the heap after GC after which a child is replaced
+     * @param jobTimeoutMillis the time after which a child still running a job is killed (0 for no limit)
+     * @param startupTimeoutMillis the time after which a child that is not ready yet is killed (0 for no limit)
+     * @param jvmArguments extra arguments for the child JVMs (e.g. -Xmx)
+     */
+    public ProcessPoolBackend(int maxProcesses, int warmSpares, int maxJobsPerProcess, long maxHeapGrowth,
+                              long jobTimeoutMillis, long startupTimeoutMillis, List<String> jvmArguments) {
+        this.maxProcesses = maxProcesses;
+        this.warmSpares = Math.min(warmSpares, maxProcesses);
+        this.maxJobsPerProcess = maxJobsPerProcess;
+        this.maxHeapGrowth = maxHeapGrowth;
+        this.jobTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(jobTimeoutMillis);
+        this.startupTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(startupTimeoutMillis);
+
+        this.command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.addAll(jvmArguments);
+        command.add(ExecutorWorker.class.getName());
+
+        Thread warmer = new Thread(new Warmer(), "executor-pool-warmer");
+        warmer.setDaemon(true);
+        warmer.start();
+
+        if (jobTimeoutNanos > 0 || startupTimeoutNanos > 0) {
+            Thread watchdog = new Thread(new Watchdog(), "executor-pool-watchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+    }
+
+    /**
+     * Sends the task to an idle child and waits for its result.
+     */
+    @Override
+    public byte[] execute(byte[] task) throws JobFunctionException {
+        ChildProcess child = acquire();
+        boolean healthy = false;
+        try {
+            byte[] result = child.execute(task);
+            healthy = true;
+            return result;
+        } catch (JobFunctionException e) {
+            healthy = true;
+            throw e;
+        } catch (IOException e) {
+            if (child.timedOut) {
+                throw new JobFunctionException("Job timed out after " + TimeUnit.NANOSECONDS.toMillis(jobTimeoutNanos) + " ms", e);
+            }
+            throw new JobFunctionException("Executor process failed: " + e.getMessage(), e);
+        } finally {
+            release(child, healthy);
+        }
+    }
+
+    /**
+     * Stops every idle child; busy children are stopped as soon as they finish their job.
+     */
+    @Override
+    public void close() {
+        poolLock.lock();
+        try {
+            closed = true;
+            for (ChildProcess child : idleProcesses) {
+                child.destroy();
+            }
+            liveProcesses -= idleProcesses.size();
+            idleProcesses.clear();
+            sparesNeeded.signalAll();
+            processAvailable.signalAll();
+            deadlinesChanged.signalAll();
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    /**
+     * Takes an idle child, waiting for the warmer to provide one if none is ready,
+     * and starts the deadline of the job it is about to run.
+     */
+    private ChildProcess acquire() throws JobFunctionException {
+        poolLock.lock();
+        try {
+            while (idleProcesses.isEmpty()) {
+                if (closed) throw new JobFunctionException("Executor pool is closed", null);
+                waitingJobs++;
+                sparesNeeded.signal();
+                processAvailable.awaitUninterruptibly();
+                waitingJobs--;
+            }
+
+            ChildProcess child = idleProcesses.removeFirst();
+            if (idleProcesses.size() < warmSpares) sparesNeeded.signal();
+            child.deadline = System.nanoTime() + jobTimeoutNanos;
+            busyProcesses.add(child);
+            deadlinesChanged.signal();
+            return child;
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a child to the pool, or replaces it if it crashed or is due for recycling.
+     */
+    private void release(ChildProcess child, boolean healthy) {
+        boolean recycle = !healthy
+                || child.jobs >= maxJobsPerProcess
+                || child.usedHeap - child.baselineHeap > maxHeapGrowth;
+
+        poolLock.lock();
+        try {
+            busyProcesses.remove(child);
+            if (recycle || closed) {
+                liveProcesses--;
+                sparesNeeded.signal();
+            } else {
+                idleProcesses.addLast(child);
+                processAvailable.signal();
+            }
+        } finally {
+            poolLock.unlock();
+        }
+
+        if (recycle || closed) child.destroy();
+    }
+
+    /**
+     * Keeps enough warm children in the pool. Each child is started outside the lock on its own
+     * short-lived thread, so a burst of jobs waits for the slowest JVM start rather than for all of them.
+     */
+    private class Warmer implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                poolLock.lock();
+                try {
+                    while (!closed && !needsSpare()) {
+                        sparesNeeded.awaitUninterruptibly();
+                    }
+                    if (closed) return;
+                    liveProcesses++;
+                    startingProcesses++;
+                } finally {
+                    poolLock.unlock();
+                }
+
+                Thread starter = new Thread(this::startChild, "executor-pool-starter");
+                starter.setDaemon(true);
+                starter.start();
+            }
+        }
+
+        private void startChild() {
+            ChildProcess child = null;
+            try {
+                child = new ChildProcess();
+            } catch (IOException e) {
+                e.printStackTrace();
+                backOff();
+            }
+
+            poolLock.lock();
+            try {
+                startingProcesses--;
+                if (child == null || closed) {
+                    liveProcesses--;
+                    sparesNeeded.signal();
+                } else {
+                    idleProcesses.addLast(child);
+                    processAvailable.signal();
+                    child = null;
+                }
+            } finally {
+                poolLock.unlock();
+            }
+
+            if (child != null) child.destroy();
+        }
+
+        private void backOff() {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private boolean needsSpare() {
+            int ready = idleProcesses.size() + startingProcesses;
+            return liveProcesses < maxProcesses && ready < warmSpares + waitingJobs;
+        }
+    }
+
+    /**
+     * Kills the children whose job ran past its deadline. The handler waiting for the job then fails to read
+     * the result and releases the child as unhealthy, so it is replaced by a fresh one. Children that are not
+     * ready by their startup deadline are killed the same way, and their starter backs off and frees the slot.
+     */
+    private class Watchdog implements Runnable {
+        @Override
+        public void run() {
+            poolLock.lock();
+            try {
+                while (!closed) {
+                    long now = System.nanoTime();
+                    long nextDeadline = Long.MAX_VALUE;
+                    if (jobTimeoutNanos > 0) nextDeadline = killExpired(busyProcesses, now, nextDeadline);
+                    if (startupTimeoutNanos > 0) nextDeadline = killExpired(startingChildren, now, nextDeadline);
+
+                    if (nextDeadline == Long.MAX_VALUE) {
+                        deadlinesChanged.await();
+                    } else {
+                        deadlinesChanged.awaitNanos(nextDeadline - now);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                poolLock.unlock();
+            }
+        }
+
+        /**
+         * Kills the children past their deadline.
+         *
+         * @return the earliest deadline still pending, or Long.MAX_VALUE if there is none
+         */
+        private long killExpired(List<ChildProcess> children, long now, long nextDeadline) {
+            for (ChildProcess child : children) {
+                if (child.timedOut) continue;
+                if (now - child.deadline >= 0) {
+                    child.timedOut = true;
+                    child.process.destroyForcibly();
+                } else if (nextDeadline == Long.MAX_VALUE || child.deadline - nextDeadline < 0) {
+                    nextDeadline = child.deadline;
+                }
+            }
+            return nextDeadline;
+        }
+    }
+
+    /**
+     * A child JVM running ExecutorWorker, together with its pipes and usage counters.
+     */
+    private class ChildProcess {
+        private final Process process;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final long baselineHeap;
+        private long usedHeap;
+        private int jobs = 0;
+        private long deadline;
+        private volatile boolean timedOut = false;
+
+        /**
+         * Starts the child and blocks until it reports that it is warmed up, or until the watchdog
+         * kills it at its startup deadline.
+         */
+        ChildProcess() throws IOException {
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            process = builder.start();
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+
+            poolLock.lock();
+            try {
+                deadline = System.nanoTime() + startupTimeoutNanos;
+                startingChildren.add(this);
+                deadlinesChanged.signal();
+            } finally {
+                poolLock.unlock();
+            }
+
+            try {
+                if (in.readByte() != ExecutorWorker.READY) throw new IOException("Executor process did not start");
+                baselineHeap = in.readLong();
+                usedHeap = baselineHeap;
+            } catch (IOException e) {
+                process.destroyForcibly();
+                throw timedOut ? startupTimeout(e) : e;
+            } finally {
+                poolLock.lock();
+                try {
+                    startingChildren.remove(this);
+                } finally {
+                    poolLock.unlock();
+                }
+            }
+            // The watchdog may have fired right after the child reported that it was ready.
+            if (timedOut) throw startupTimeout(null);
+        }
+
+        private IOException startupTimeout(IOException cause) {
+            return new IOException("Executor process was not ready after " + TimeUnit.NANOSECONDS.toMillis(startupTimeoutNanos) + " ms", cause);
+        }
+
+        byte[] execute(byte[] task) throws IOException, JobFunctionException {
+            jobs++;
+            out.writeInt(task.length);
+            out.write(task);
+            out.flush();
+
+            byte status = in.readByte();
+            if (status == ExecutorWorker.OK) {
+                byte[] result = new byte[in.readInt()];
+                in.readFully(result);
+                usedHeap = in.readLong();
+                return result;
+            }
+            if (status == ExecutorWorker.FAILED) {
+                String message = in.readUTF();
+                usedHeap = in.readLong();
+                throw new JobFunctionException(message, null);
+            }
+            throw new IOException("Unexpected executor response: " + status);
+        }
+
+        void destroy() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // The child is being discarded anyway.
+            }
+            process.destroyForcibly();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Checks that a TokenBucket enforces its configured byte rate: for each rate, one thread takes chunks from
+ * a bucket as fast as it can for the given time, and the rate it was granted, not counting the initial burst,
+ * must be within 1% of the configured one (exit code 1 otherwise). The burst covers 10 ms, so that the thread
+ * being descheduled for a moment does not waste refilled bytes. Chunks must be large enough for a single
+ * thread to request the highest rate (4 GB/s is about a million 4 KiB chunks per second).
+ *
+ * Usage: java RateLimitCheck [seconds] [chunkBytes]
+ */
+public class RateLimitCheck {
+    private static final double[] BYTES_PER_SECOND = { 1e6, 300e6, 600e6, 1.5e9, 4e9 };
+    private static final double TOLERANCE = 0.01;
+
+    public static void main(String[] args) {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 1;
+        int chunkBytes = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+
+        boolean passed = true;
+        for (double rate : BYTES_PER_SECOND) {
+            long burst = Math.max(chunkBytes, (long) (rate / 100));
+            TokenBucket bucket = new TokenBucket(rate, burst);
+            long granted = 0;
+            long start = System.nanoTime();
+            long deadline = start + (long) (seconds * 1e9);
+            while (System.nanoTime() < deadline) {
+                if (bucket.tryAcquire(chunkBytes)) granted += chunkBytes;
+            }
+            double measured = (granted - burst) / ((System.nanoTime() - start) / 1e9);
+            double error = measured / rate - 1;
+            boolean ok = Math.abs(error) <= TOLERANCE;
+            passed &= ok;
+            System.out.printf("%14.0f B/s configured, %14.0f B/s granted, %+6.2f%% %s%n", rate, measured, error * 100, ok ? "ok" : "WRONG");
+        }
+        System.out.println(passed ? "RATE LIMIT CHECK PASSED" : "RATE LIMIT CHECK FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+}
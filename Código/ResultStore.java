@@ -0,0 +1,370 @@
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Stores the results of detached jobs in an append-only log of memory-mapped segment files,
+ * so that results do not stay on the heap until the client fetches them.
+ *
+ * Each result is appended to the active segment as {@code long jobId, int length, byte[length] result}.
+ * When the active segment is full a new one is started; a result larger than a segment gets a segment of its own.
+ * Segments whose last write is older than the retention period are deleted, together with their jobs,
+ * unless a result is being written to or sent from them: such segments are pinned until the next sweep.
+ * The mapping of a deleted segment is released right away, so its disk space is freed without waiting for a GC.
+ * Results are sent to clients with FileChannel.transferTo, so they are not copied through the heap.
+ *
+ * The job index only lives in memory: results do not survive a restart of the server.
+ */
+public class ResultStore {
+    private static final int RECORD_HEADER = Long.BYTES + Integer.BYTES;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long retentionNanos;
+
+    private final Map<Long, Job> jobs = new HashMap<>();
+    private final LinkedList<Segment> segments = new LinkedList<>();
+    private Segment activeSegment = null;
+    private long nextJobId = 1;
+    private long nextSegmentId = 1;
+    private final Lock storeLock = new ReentrantLock();
+    private final Thread sweeper;
+
+    /**
+     * Creates a store in the given directory, deleting any segment left by a previous run.
+     *
+     * @param directory the directory holding the segment files
+     * @param segmentSize the size of each segment file
+     * @param retentionMillis how long results are kept after being written
+     * @throws IOException if the directory cannot be prepared
+     */
+    public ResultStore(Path directory, int segmentSize, long retentionMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retentionNanos = TimeUnit.MILLISECONDS.toNanos(retentionMillis);
+
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().startsWith("segment-")) Files.delete(file);
+            }
+        }
+
+        sweeper = new Thread(this::sweepPeriodically, "result-store-sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    /**
+     * Registers a new pending job.
+     *
+     * @param user the owner of the job
+     * @return the identifier of the job
+     */
+    public long createJob(String user) {
+        storeLock.lock();
+        try {
+            long jobId = nextJobId++;
+            jobs.put(jobId, new Job(jobId, user));
+            return jobId;
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Appends the result of a job to the log and marks the job as done.
+     * The space is reserved under the lock; the bytes are copied into the mapped segment outside of it.
+     *
+     * @param jobId the identifier of the job
+     * @param result the result of the job
+     * @throws IOException if a new segment could not be created
+     */
+    public void complete(long jobId, byte[] result) throws IOException {
+        long recordSize = (long) RECORD_HEADER + result.length;
+        if (recordSize > Integer.MAX_VALUE) throw new IOException("Result of job " + jobId + " does not fit in a segment");
+        Segment segment;
+        int offset;
+
+        storeLock.lock();
+        try {
+            if (activeSegment == null || activeSegment.remaining() < recordSize) {
+                activeSegment = createSegment((int) Math.max(segmentSize, recordSize));
+            }
+            segment = activeSegment;
+            offset = segment.reserve((int) recordSize);
+            segment.pins++;
+        } finally {
+            storeLock.unlock();
+        }
+
+        ByteBuffer record = segment.slice(offset, (int) recordSize);
+        record.putLong(jobId);
+        record.putInt(result.length);
+        record.put(result);
+
+        storeLock.lock();
+        try {
+            segment.pins--;
+            segment.lastWrite = System.nanoTime();
+            Job job = jobs.get(jobId);
+            if (job != null) {
+                job.segment = segment;
+                job.offset = offset + RECORD_HEADER;
+                job.length = result.length;
+                job.status = "DONE";
+                segment.jobs.add(jobId);
+            }
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Marks a job as failed.
+     *
+     * @param jobId the identifier of the job
+     */
+    public void fail(long jobId) {
+        storeLock.lock();
+        try {
+            Job job = jobs.get(jobId);
+            if (job != null) {
+                job.status = "FAILED";
+                job.finishedAt = System.nanoTime();
+            }
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the state of a job, if it belongs to the given user.
+     *
+     * @return the state of the job, or null if there is no such job for this user
+     */
+    public JobInfo getJob(String user, long jobId) {
+        storeLock.lock();
+        try {
+            Job job = jobs.get(jobId);
+            return job == null || !job.user.equals(user) ? null : job.info();
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Lists the jobs of a user, oldest first.
+     */
+    public List<JobInfo> listJobs(String user) {
+        List<JobInfo> result = new ArrayList<>();
+        storeLock.lock();
+        try {
+            for (Job job : jobs.values()) {
+                if (job.user.equals(user)) result.add(job.info());
+            }
+        } finally {
+            storeLock.unlock();
+        }
+        result.sort((a, b) -> Long.compare(a.jobId, b.jobId));
+        return result;
+    }
+
+    /**
+     * Sends the result of a finished job straight from its segment file to the given channel.
+     * The segment is pinned while the result is sent, so the sweeper cannot delete it mid-transfer.
+     *
+     * @param user the owner of the job
+     * @param jobId the identifier of the job
+     * @param target the channel to write to
+     * @return the number of bytes sent
+     * @throws IOException if the segment cannot be read or the channel cannot be written
+     */
+    public long transferResult(String user, long jobId, WritableByteChannel target) throws IOException {
+        Segment segment;
+        long offset;
+        long length;
+
+        storeLock.lock();
+        try {
+            Job job = jobs.get(jobId);
+            if (job == null || !job.user.equals(user) || job.segment == null) return 0;
+            segment = job.segment;
+            offset = job.offset;
+            length = job.length;
+            segment.pins++;
+        } finally {
+            storeLock.unlock();
+        }
+
+        try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+            long sent = 0;
+            while (sent < length) {
+                sent += channel.transferTo(offset + sent, length - sent, target);
+            }
+            return sent;
+        } finally {
+            storeLock.lock();
+            try {
+                segment.pins--;
+            } finally {
+                storeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Stops the sweeper thread. Segments are kept on disk until the next store is created in the directory.
+     */
+    public void close() {
+        sweeper.interrupt();
+    }
+
+    private Segment createSegment(int size) throws IOException {
+        Path file = directory.resolve(String.format("segment-%012d.log", nextSegmentId++));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Segment segment = new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            segments.addLast(segment);
+            return segment;
+        }
+    }
+
+    /**
+     * Deletes the segments (and forgets the jobs) that are past the retention period.
+     * Failed jobs, which have no segment, expire on their own.
+     */
+    private void sweep() {
+        List<Segment> expired = new ArrayList<>();
+        long now = System.nanoTime();
+
+        storeLock.lock();
+        try {
+            Iterator<Segment> iterator = segments.iterator();
+            while (iterator.hasNext()) {
+                Segment segment = iterator.next();
+                if (now - segment.lastWrite < retentionNanos || segment.pins > 0) continue;
+
+                iterator.remove();
+                if (segment == activeSegment) activeSegment = null;
+                for (long jobId : segment.jobs) {
+                    jobs.remove(jobId);
+                }
+                expired.add(segment);
+            }
+            jobs.values().removeIf(job -> job.finishedAt != 0 && job.segment == null && now - job.finishedAt > retentionNanos);
+        } finally {
+            storeLock.unlock();
+        }
+
+        for (Segment segment : expired) {
+            unmap(segment.buffer);
+            try {
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Releases a mapping right away instead of when it is garbage collected, which would keep the disk space
+     * of a deleted segment in use until then. The buffer must not be used afterwards: expired segments are
+     * no longer reachable from the store, and pinned ones are never expired.
+     * Falls back to leaving it to the GC if the JDK does not allow it.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // The mapping is released when the buffer is garbage collected.
+        }
+    }
+
+    private void sweepPeriodically() {
+        long period = Math.max(TimeUnit.SECONDS.toMillis(1), TimeUnit.NANOSECONDS.toMillis(retentionNanos) / 4);
+        while (true) {
+            try {
+                Thread.sleep(period);
+            } catch (InterruptedException e) {
+                return;
+            }
+            sweep();
+        }
+    }
+
+    /**
+     * A segment file of the log, with the mapping used to append to it.
+     */
+    private static class Segment {
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        private final List<Long> jobs = new ArrayList<>();
+        private int writePosition = 0;
+        private int pins = 0;
+        private long lastWrite = System.nanoTime();
+
+        Segment(Path file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        int remaining() {
+            return buffer.capacity() - writePosition;
+        }
+
+        int reserve(int size) {
+            int offset = writePosition;
+            writePosition += size;
+            lastWrite = System.nanoTime();
+            return offset;
+        }
+
+        ByteBuffer slice(int offset, int size) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset).limit(offset + size);
+            return view.slice();
+        }
+    }
+
+    /**
+     * A detached job and, once it is done, the location of its result.
+     */
+    private static class Job {
+        private final long jobId;
+        private final String user;
+        private final long submittedAt = System.currentTimeMillis();
+        private String status = "PENDING";
+        private long finishedAt = 0;
+        private Segment segment = null;
+        private long offset;
+        private long length;
+
+        Job(long jobId, String user) {
+            this.jobId = jobId;
+            this.user = user;
+        }
+
+        JobInfo info() {
+            return new JobInfo(jobId, status, length, submittedAt);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events emitted by the CentralServer over the job lifecycle.
+ * Every event carries the user, payload size, result size and outcome so that recordings
+ * can correlate job latency with GC and lock contention in JMC.
+ *
+ * Callers only fill in the fields after {@code shouldCommit()} returns true, so the events
+ * cost next to nothing when no recording is running.
+ */
+final class ServerEvents {
+    private ServerEvents() {}
+
+    /**
+     * Fields shared by every job lifecycle event.
+     */
+    @Category({"FaaS", "Central Server"})
+    @StackTrace(false)
+    abstract static class JobLifecycleEvent extends Event {
+        @Label("User")
+        String user;
+
+        @Label("Payload Size")
+        @DataAmount
+        long payloadSize;
+
+        @Label("Result Size")
+        @DataAmount
+        long resultSize;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("faas.ConnectionAccept")
+    @Label("Connection Accept")
+    @Description("A client connection was accepted and handed to a ClientHandler")
+    static class ConnectionAccept extends JobLifecycleEvent {
+        @Label("Remote Address")
+        String remoteAddress;
+    }
+
+    @Name("faas.RequestDecode")
+    @Label("Request Decode")
+    @Description("The payload of a request was read from the client socket")
+    static class RequestDecode extends JobLifecycleEvent {
+        @Label("Request Type")
+        String requestType;
+    }
+
+    @Name("faas.AdmissionWait")
+    @Label("Admission Wait")
+    @Description("Time between a task being decoded and the admission decision being sent")
+    static class AdmissionWait extends JobLifecycleEvent {
+        @Label("Available Memory")
+        @DataAmount
+        long availableMemory;
+    }
+
+    @Name("faas.JobExecute")
+    @Label("Job Execute")
+    @Description("A call to JobFunction.execute")
+    static class JobExecute extends JobLifecycleEvent {
+        @Label("Error Code")
+        int errorCode;
+    }
+
+    @Name("faas.ResultSend")
+    @Label("Result Send")
+    @Description("The result of a job was written back to the client")
+    static class ResultSend extends JobLifecycleEvent {
+    }
+
+    @Name("faas.Login")
+    @Label("Login")
+    static class Login extends JobLifecycleEvent {
+    }
+
+    @Name("faas.Register")
+    @Label("Register")
+    static class Register extends JobLifecycleEvent {
+    }
+
+    @Name("faas.MemoryReservation")
+    @Label("Memory Reservation")
+    @Description("The server memory budget was reserved or released for a job")
+    static class MemoryReservation extends JobLifecycleEvent {
+        @Label("Delta")
+        @DataAmount
+        long delta;
+
+        @Label("Available Memory")
+        @DataAmount
+        long availableMemory;
+
+        @Label("Pending Tasks")
+        int pendingTasks;
+    }
+}
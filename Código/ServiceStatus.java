@@ -1,9 +1,12 @@
 /**
  * Represents the status of a service.
+ * The estimates are only filled in when the status is queried for a given payload size, and are -1 otherwise.
  */
 class ServiceStatus {
-    public int availableMemory;
+    public long availableMemory;
     public int pendingTasks;
+    public long estimatedWaitMillis = -1;
+    public long estimatedCompletionMillis = -1;
 
     /**
      * Constructs a ServiceStatus object with the specified available memory and pending tasks.
@@ -11,8 +14,22 @@ class ServiceStatus {
      * @param availableMemory the amount of available memory
      * @param pendingTasks the number of pending tasks
      */
-    public ServiceStatus(int availableMemory, int pendingTasks) {
+    public ServiceStatus(long availableMemory, int pendingTasks) {
         this.availableMemory = availableMemory;
         this.pendingTasks = pendingTasks;
     }
+
+    /**
+     * Constructs a ServiceStatus object with the predicted queue wait and completion time of a job.
+     * 
+     * @param availableMemory the amount of available memory
+     * @param pendingTasks the number of pending tasks
+     * @param estimatedWaitMillis the predicted wait before the job is admitted, or -1 if unknown
+     * @param estimatedCompletionMillis the predicted time until the job completes, or -1 if unknown
+     */
+    public ServiceStatus(long availableMemory, int pendingTasks, long estimatedWaitMillis, long estimatedCompletionMillis) {
+        this(availableMemory, pendingTasks);
+        this.estimatedWaitMillis = estimatedWaitMillis;
+        this.estimatedCompletionMillis = estimatedCompletionMillis;
+    }
 }
\ No newline at end of file
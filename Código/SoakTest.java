@@ -0,0 +1,259 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+/**
+ * Soaks a CentralServer with connect / login / execute / status / logout cycles and fails if the server leaks.
+ *
+ * The server runs in this JVM with the EchoBackend standing in for JobFunction, so cycles are limited by the
+ * server and not by the jobs. The server keeps its results, uploads and usage ledger in a temporary directory,
+ * so the test does not touch the data of a server running in the working directory.
+ *
+ * Every sampling period the test records the live thread count, the heap used after
+ * a GC, the open file descriptors and the mean cycle latency. At the end it fits a line through the samples
+ * taken after the warm-up and fails (exit code 1) if the slope of any of them is above its limit:
+ * <pre>
+ *   faas.soak.maxThreadSlope    threads per minute (default 1)
+ *   faas.soak.maxHeapSlope      MiB per minute (default 1)
+ *   faas.soak.maxFdSlope        file descriptors per minute (default 1)
+ *   faas.soak.maxLatencySlope   milliseconds per minute (default 1)
+ * </pre>
+ *
+ * Usage: java SoakTest [minutes] [clients] [sampleSeconds] [port]
+ */
+public class SoakTest {
+    private static final String[] METRICS = { "threads", "heap MiB", "open fds", "latency ms" };
+    private static final String[] LIMITS = { "faas.soak.maxThreadSlope", "faas.soak.maxHeapSlope", "faas.soak.maxFdSlope", "faas.soak.maxLatencySlope" };
+    private static final int USERS = 16;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        double minutes = args.length > 0 ? Double.parseDouble(args[0]) : 10;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int sampleSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 18100;
+
+        // Logins are part of every cycle: keep hashing cheap and do not throttle the harness.
+        System.setProperty("faas.auth.iterations", "1000");
+        System.setProperty("faas.limit.requestsPerSecond", "0");
+        Path data = Files.createTempDirectory("soak-test");
+        System.setProperty("faas.results.dir", data.resolve("results").toString());
+        System.setProperty("faas.uploads.dir", data.resolve("uploads").toString());
+        System.setProperty("faas.usage.dir", data.resolve("usage").toString());
+        CentralServer server = new CentralServer(port, new EchoBackend());
+        Thread serverThread = new Thread(server::start, "soak-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        for (int i = 0; i < USERS; i++) {
+            Client registration = new Client("localhost", port);
+            registration.register("soak" + i, "soak" + i);
+            registration.logout();
+        }
+
+        LongAdder cycles = new LongAdder();
+        LongAdder cycleNanos = new LongAdder();
+        AtomicLong failures = new AtomicLong();
+        long deadline = System.nanoTime() + (long) (minutes * 60_000_000_000L);
+        AtomicBoolean running = new AtomicBoolean(true);
+
+        for (int i = 0; i < clients; i++) {
+            int client = i;
+            Thread thread = new Thread(() -> {
+                long n = client;
+                while (running.get()) {
+                    long start = System.nanoTime();
+                    try {
+                        runCycle(port, "soak" + (n++ % USERS));
+                        cycles.increment();
+                        cycleNanos.add(System.nanoTime() - start);
+                    } catch (IOException e) {
+                        if (failures.incrementAndGet() <= 10) e.printStackTrace();
+                    }
+                }
+            }, "soak-client-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        List<double[]> samples = new ArrayList<>();
+        long begin = System.nanoTime();
+        long lastCycles = 0;
+        long lastNanos = 0;
+        System.out.printf("%8s %10s %8s %10s %9s %10s%n", "minute", "cycles", "threads", "heap MiB", "open fds", "latency ms");
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(sampleSeconds * 1000L);
+
+            long totalCycles = cycles.sum();
+            long totalNanos = cycleNanos.sum();
+            double latency = totalCycles == lastCycles ? 0 : (totalNanos - lastNanos) / 1e6 / (totalCycles - lastCycles);
+            lastCycles = totalCycles;
+            lastNanos = totalNanos;
+
+            double minute = (System.nanoTime() - begin) / 60e9;
+            double[] sample = { minute, threadCount(), heapAfterGc() / (1024.0 * 1024), openFileDescriptors(), latency };
+            samples.add(sample);
+            System.out.printf("%8.2f %10d %8.0f %10.1f %9.0f %10.2f%n", minute, totalCycles, sample[1], sample[2], sample[3], sample[4]);
+        }
+
+        running.set(false);
+        server.shutdown();
+        try (Stream<Path> files = Files.walk(data)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+        System.out.println("cycles: " + cycles.sum() + ", failed cycles: " + failures.get());
+        boolean passed = report(samples.subList(Math.min(samples.size(), Integer.getInteger("faas.soak.warmupSamples", 3)), samples.size()));
+        System.out.println(passed ? "SOAK PASSED" : "SOAK FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Runs one client session: connect, login, an attached job, a small job, a status query, a status
+     * subscription attached on a second connection and a logout.
+     */
+    private static void runCycle(int port, String username) throws IOException {
+        byte[] task = new byte[256];
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            out.writeUTF("LOGIN");
+            out.writeUTF(username);
+            out.writeUTF(username);
+            out.flush();
+            expect(in.readUTF(), "LOGIN_SUCCESS");
+
+            out.writeUTF("EXECUTE_TASK");
+            out.flush();
+            expect(in.readUTF(), "VALID");
+            out.writeInt(task.length);
+            out.write(task);
+            out.flush();
+            expect(in.readUTF(), "ADMITTED");
+            in.readFully(new byte[in.readInt()]);
+
+            out.writeUTF("EXECUTE_SMALL");
+            out.writeInt(task.length);
+            out.write(task);
+            out.flush();
+            expect(in.readUTF(), "ADMITTED");
+            in.readFully(new byte[in.readInt()]);
+
+            out.writeUTF("QUERY_STATUS");
+            out.flush();
+            expect(in.readUTF(), "VALID");
+            in.readLong();
+            in.readInt();
+
+            out.writeUTF("SUBSCRIBE_STATUS");
+            out.flush();
+            expect(in.readUTF(), "VALID");
+            attachStatus(port, in.readUTF());
+
+            out.writeUTF("LOGOUT");
+            out.flush();
+            expect(in.readUTF(), "VALID");
+            // Wait for the server to close the connection, so the logout is complete before the next cycle.
+            while (in.read() != -1) {
+            }
+        }
+    }
+
+    /**
+     * Attaches a status subscription with the given token on a new connection, reads the initial
+     * update and closes the connection.
+     */
+    private static void attachStatus(int port, String token) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            out.writeUTF("ATTACH_STATUS");
+            out.writeUTF(token);
+            out.writeInt(100);
+            out.flush();
+            expect(in.readUTF(), "SUBSCRIBED");
+            in.readByte();
+            in.readLong();
+            in.readInt();
+        }
+    }
+
+    private static void expect(String answer, String expected) throws IOException {
+        if (!answer.equals(expected)) throw new IOException("Expected " + expected + " but got " + answer);
+    }
+
+    /**
+     * Prints the slope of every metric and checks it against its limit.
+     *
+     * @return true if every slope is within its limit
+     */
+    private static boolean report(List<double[]> samples) {
+        if (samples.size() < 2) {
+            System.out.println("Not enough samples after the warm-up to compute slopes.");
+            return false;
+        }
+
+        boolean passed = true;
+        for (int metric = 0; metric < METRICS.length; metric++) {
+            double slope = slope(samples, metric + 1);
+            double limit = Double.parseDouble(System.getProperty(LIMITS[metric], "1"));
+            boolean ok = slope <= limit;
+            passed &= ok;
+            System.out.printf("%-12s slope %10.3f per minute (limit %.3f) %s%n", METRICS[metric], slope, limit, ok ? "ok" : "LEAK");
+        }
+        return passed;
+    }
+
+    /**
+     * Least-squares slope of a column of the samples against their time in minutes.
+     */
+    private static double slope(List<double[]> samples, int column) {
+        double meanX = 0;
+        double meanY = 0;
+        for (double[] sample : samples) {
+            meanX += sample[0];
+            meanY += sample[column];
+        }
+        meanX /= samples.size();
+        meanY /= samples.size();
+
+        double covariance = 0;
+        double variance = 0;
+        for (double[] sample : samples) {
+            covariance += (sample[0] - meanX) * (sample[column] - meanY);
+            variance += (sample[0] - meanX) * (sample[0] - meanX);
+        }
+        return variance == 0 ? 0 : covariance / variance;
+    }
+
+    private static double threadCount() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    private static double heapAfterGc() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static double openFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof UnixOperatingSystemMXBean) return ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        return 0;
+    }
+}
@@ -0,0 +1,24 @@
+import java.io.IOException;
+
+/**
+ * The StatusListener interface receives the service status updates pushed by the server
+ * after a call to ClientAPI.subscribeStatus.
+ */
+public interface StatusListener {
+    /**
+     * Called whenever the server pushes a new status.
+     *
+     * @param status the current status of the service
+     */
+    public void onStatus(ServiceStatus status);
+
+    /**
+     * Called once when the subscription ends, after which no more updates arrive: when it is cancelled with
+     * unsubscribeStatus, or when the server drops it (e.g. because the client fell behind, or on shutdown).
+     * Does nothing by default.
+     *
+     * @param error the error that ended the subscription, or null if it was cancelled by the client
+     */
+    public default void onClosed(IOException error) {
+    }
+}
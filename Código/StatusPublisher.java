@@ -0,0 +1,328 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pushes ServiceStatus changes to subscribed clients, so they do not have to poll QUERY_STATUS.
+ *
+ * A single thread serves every subscriber. It only wakes up when the status changes or when a
+ * coalesced update becomes due, and sends each subscriber at most one update per its interval,
+ * containing only the fields that changed since the last update it received:
+ * <pre>
+ *   byte mask (MEMORY_CHANGED | PENDING_CHANGED), [long availableMemory], [int pendingTasks]
+ * </pre>
+ *
+ * Subscriptions use a dedicated connection: the logged in connection asks for a single-use token
+ * (SUBSCRIBE_STATUS), and a new connection redeems it (ATTACH_STATUS) and then only receives updates.
+ *
+ * Once attached, a subscription is written to in non-blocking mode, so a subscriber that stops reading
+ * cannot stall the updates of the others: as soon as an update no longer fits in its socket buffer,
+ * it has fallen behind and is dropped. Subscribers that closed their connection are dropped at the
+ * next status change, whether or not they were due for an update.
+ */
+public class StatusPublisher {
+    public static final byte MEMORY_CHANGED = 1;
+    public static final byte PENDING_CHANGED = 2;
+    private static final long TOKEN_TTL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final long minIntervalNanos;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Long> tokenExpirations = new HashMap<>();
+    private final List<Subscriber> subscribers = new ArrayList<>();
+
+    private long availableMemory;
+    private int pendingTasks;
+    private boolean changed = false;
+    private final Lock publisherLock = new ReentrantLock();
+    private final Condition wakeUp = publisherLock.newCondition();
+    private final Thread publisher;
+
+    /**
+     * Creates the publisher and starts its thread.
+     *
+     * @param availableMemory the initial available memory of the server
+     * @param pendingTasks the initial number of pending tasks
+     * @param minIntervalMillis the minimum interval between two updates to the same subscriber
+     */
+    public StatusPublisher(long availableMemory, int pendingTasks, long minIntervalMillis) {
+        this.availableMemory = availableMemory;
+        this.pendingTasks = pendingTasks;
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+
+        publisher = new Thread(this::publish, "status-publisher");
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+
+    /**
+     * Records a new status. This is cheap: the updates are sent by the publisher thread.
+     */
+    public void statusChanged(long availableMemory, int pendingTasks) {
+        publisherLock.lock();
+        try {
+            this.availableMemory = availableMemory;
+            this.pendingTasks = pendingTasks;
+            if (!changed && !subscribers.isEmpty()) {
+                changed = true;
+                wakeUp.signal();
+            }
+        } finally {
+            publisherLock.unlock();
+        }
+    }
+
+    /**
+     * Issues a single-use token that lets a new connection attach as a subscriber.
+     *
+     * @return the token
+     */
+    public String issueToken() {
+        byte[] bytes = new byte[18];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().encodeToString(bytes);
+
+        publisherLock.lock();
+        try {
+            long now = System.nanoTime();
+            tokenExpirations.values().removeIf(expiration -> now - expiration > 0);
+            tokenExpirations.put(token, now + TOKEN_TTL_NANOS);
+        } finally {
+            publisherLock.unlock();
+        }
+        return token;
+    }
+
+    /**
+     * Redeems a token and, if it is valid, registers the connection as a subscriber.
+     * The connection receives "SUBSCRIBED" followed by the full current status, or "INVALID".
+     *
+     * @param socket the connection of the subscriber
+     * @param token the token issued by issueToken
+     * @param intervalMillis the minimum interval between two updates requested by the client
+     * @return true if the subscription was registered, false otherwise
+     * @throws IOException if an I/O error occurs while answering the client
+     */
+    public boolean subscribe(Socket socket, String token, int intervalMillis) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null) throw new IOException("Status subscriptions need a channel-backed socket");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        boolean valid;
+        long memory;
+        int tasks;
+
+        publisherLock.lock();
+        try {
+            Long expiration = tokenExpirations.remove(token);
+            valid = expiration != null && System.nanoTime() - expiration < 0;
+            memory = availableMemory;
+            tasks = pendingTasks;
+        } finally {
+            publisherLock.unlock();
+        }
+
+        if (!valid) {
+            out.writeUTF("INVALID");
+            out.flush();
+            return false;
+        }
+
+        out.writeUTF("SUBSCRIBED");
+        out.flush();
+        Subscriber subscriber = new Subscriber(channel, Math.max(minIntervalNanos, TimeUnit.MILLISECONDS.toNanos(intervalMillis)));
+        subscriber.send(MEMORY_CHANGED | PENDING_CHANGED, memory, tasks);
+        channel.configureBlocking(false);
+
+        publisherLock.lock();
+        try {
+            subscribers.add(subscriber);
+            changed = true;
+            wakeUp.signal();
+        } finally {
+            publisherLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Stops the publisher thread and closes every subscription.
+     */
+    public void close() {
+        publisher.interrupt();
+
+        Subscriber[] targets;
+        publisherLock.lock();
+        try {
+            targets = subscribers.toArray(new Subscriber[0]);
+            subscribers.clear();
+        } finally {
+            publisherLock.unlock();
+        }
+        for (Subscriber subscriber : targets) {
+            subscriber.close();
+        }
+    }
+
+    /**
+     * The publisher loop: sleeps until the status changes, sends the changes outside the lock,
+     * and if some subscribers are still within their interval, sleeps until the first of them is due.
+     */
+    private void publish() {
+        try {
+            while (true) {
+                Subscriber[] targets;
+                long memory;
+                int tasks;
+
+                publisherLock.lock();
+                try {
+                    while (!changed) {
+                        wakeUp.await();
+                    }
+                    changed = false;
+                    memory = availableMemory;
+                    tasks = pendingTasks;
+                    targets = subscribers.toArray(new Subscriber[0]);
+                } finally {
+                    publisherLock.unlock();
+                }
+
+                long nextDue = sendUpdates(targets, memory, tasks);
+                if (nextDue == Long.MAX_VALUE) continue;
+
+                publisherLock.lock();
+                try {
+                    changed = true;
+                    long wait;
+                    while ((wait = nextDue - System.nanoTime()) > 0) {
+                        wakeUp.awaitNanos(wait);
+                    }
+                } finally {
+                    publisherLock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends the changed fields to every subscriber whose interval has elapsed, dropping the ones that
+     * disconnected or fell behind.
+     *
+     * @return the time at which the next coalesced update is due, or Long.MAX_VALUE if none is pending
+     */
+    private long sendUpdates(Subscriber[] targets, long memory, int tasks) {
+        long now = System.nanoTime();
+        long nextDue = Long.MAX_VALUE;
+        List<Subscriber> disconnected = new ArrayList<>();
+
+        for (Subscriber subscriber : targets) {
+            if (subscriber.isDisconnected()) {
+                subscriber.close();
+                disconnected.add(subscriber);
+                continue;
+            }
+
+            int mask = subscriber.changes(memory, tasks);
+            if (mask == 0) continue;
+
+            if (now - subscriber.nextUpdate < 0) {
+                nextDue = Math.min(nextDue, subscriber.nextUpdate);
+                continue;
+            }
+
+            try {
+                subscriber.send(mask, memory, tasks);
+            } catch (IOException e) {
+                subscriber.close();
+                disconnected.add(subscriber);
+            }
+        }
+
+        if (!disconnected.isEmpty()) {
+            publisherLock.lock();
+            try {
+                subscribers.removeAll(disconnected);
+            } finally {
+                publisherLock.unlock();
+            }
+        }
+        return nextDue;
+    }
+
+    /**
+     * A subscribed connection and the last status it was sent.
+     */
+    private static class Subscriber {
+        private final SocketChannel channel;
+        private final long intervalNanos;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 + Long.BYTES + Integer.BYTES);
+        private final ByteBuffer probe = ByteBuffer.allocate(1);
+        private long nextUpdate;
+        private long sentMemory;
+        private int sentPending;
+
+        Subscriber(SocketChannel channel, long intervalNanos) {
+            this.channel = channel;
+            this.intervalNanos = intervalNanos;
+        }
+
+        int changes(long availableMemory, int pendingTasks) {
+            int mask = 0;
+            if (availableMemory != sentMemory) mask |= MEMORY_CHANGED;
+            if (pendingTasks != sentPending) mask |= PENDING_CHANGED;
+            return mask;
+        }
+
+        /**
+         * Writes an update. In non-blocking mode, an update that does not fit in the socket buffer
+         * means the subscriber stopped reading, and fails like a disconnection.
+         */
+        void send(int mask, long availableMemory, int pendingTasks) throws IOException {
+            buffer.clear();
+            buffer.put((byte) mask);
+            if ((mask & MEMORY_CHANGED) != 0) buffer.putLong(availableMemory);
+            if ((mask & PENDING_CHANGED) != 0) buffer.putInt(pendingTasks);
+            buffer.flip();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) throw new IOException("Subscriber fell behind");
+            sentMemory = availableMemory;
+            sentPending = pendingTasks;
+            nextUpdate = System.nanoTime() + intervalNanos;
+        }
+
+        /**
+         * Checks, without blocking, whether the subscriber closed its connection. Subscribers never
+         * send anything, so any data is treated as a protocol error.
+         */
+        boolean isDisconnected() {
+            try {
+                probe.clear();
+                return channel.read(probe) != 0;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // The subscriber is being dropped anyway.
+            }
+        }
+    }
+}
@@ -8,8 +8,19 @@ public class ThreadExecutor {
     private final LinkedList<Runnable> taskQueue;
     private final Lock queueLock;
     private final Condition queueNotEmpty;
+    private final int maxQueuedTasks;
+    private boolean shutdown = false;
 
     public ThreadExecutor(int poolSize) {
+        this(poolSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a pool whose queue holds at most maxQueuedTasks tasks waiting for a thread.
+     * Only trySubmitTask honours the bound.
+     */
+    public ThreadExecutor(int poolSize, int maxQueuedTasks) {
+        this.maxQueuedTasks = maxQueuedTasks;
         this.threads = new WorkerThread[poolSize];
         this.taskQueue = new LinkedList<>();
         this.queueLock = new ReentrantLock();
@@ -24,13 +35,56 @@ public class ThreadExecutor {
     public void submitTask(Runnable task) {
         queueLock.lock();
         try {
+            if (shutdown) return;
+            taskQueue.addLast(task);
+            queueNotEmpty.signal();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Submits a task unless the queue is already full.
+     *
+     * @return true if the task was queued, false if it was rejected
+     */
+    public boolean trySubmitTask(Runnable task) {
+        queueLock.lock();
+        try {
+            if (shutdown || taskQueue.size() >= maxQueuedTasks) return false;
             taskQueue.addLast(task);
             queueNotEmpty.signal();
+            return true;
         } finally {
             queueLock.unlock();
         }
     }
 
+    /**
+     * Stops the pool once the tasks already queued have run: the worker threads exit as soon as
+     * the queue is empty, and tasks submitted afterwards are dropped.
+     */
+    public void shutdown() {
+        queueLock.lock();
+        try {
+            shutdown = true;
+            queueNotEmpty.signalAll();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for every worker thread to exit, after shutdown.
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public void awaitTermination() throws InterruptedException {
+        for (WorkerThread thread : threads) {
+            thread.join();
+        }
+    }
+
     private class WorkerThread extends Thread {
         @Override
         public void run() {
@@ -40,6 +94,7 @@ public class ThreadExecutor {
                 queueLock.lock();
                 try {
                     while (taskQueue.isEmpty()) {
+                        if (shutdown) return;
                         try {
                             queueNotEmpty.await();
                         } catch (InterruptedException e) {
@@ -0,0 +1,88 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, implemented as a generic cell rate algorithm (GCRA).
+ *
+ * Instead of a token count and a refill timestamp, the bucket keeps a single "theoretical arrival time":
+ * the instant at which the bucket would be full again. Acquiring permits pushes that instant forward,
+ * so a check is one read and one compare-and-set, and never blocks.
+ *
+ * Times are kept in ticks of 1/64 ns since the bucket was created, so that the emission interval of high byte
+ * rates (under a nanosecond per byte) is not rounded to whole nanoseconds. A bucket lasts for about 4.5 years.
+ */
+public class TokenBucket {
+    private static final long TICKS_PER_NANO = 64;
+
+    private final double ticksPerPermit;
+    private final long burstTolerance;
+    private final long origin = System.nanoTime();
+    private final AtomicLong theoreticalArrival = new AtomicLong(0);
+
+    /**
+     * Creates a bucket that refills at the given rate and holds up to {@code burst} permits.
+     * A non-positive rate creates an unlimited bucket.
+     *
+     * @param permitsPerSecond the refill rate of the bucket
+     * @param burst the capacity of the bucket
+     */
+    public TokenBucket(double permitsPerSecond, long burst) {
+        this.ticksPerPermit = permitsPerSecond <= 0 ? 0 : TICKS_PER_NANO * 1e9 / permitsPerSecond;
+        this.burstTolerance = ticksFor(Math.max(0, burst - 1));
+    }
+
+    /**
+     * Tries to take the given number of permits from the bucket.
+     * A request larger than the bucket capacity is let through when the bucket is not in debt,
+     * and then has to be paid back before the next request is accepted.
+     *
+     * @param permits the number of permits to take
+     * @return true if the permits were taken, false if the caller is over its rate
+     */
+    public boolean tryAcquire(long permits) {
+        if (ticksPerPermit == 0) return true;
+
+        long now = (System.nanoTime() - origin) * TICKS_PER_NANO;
+        long cost = ticksFor(permits);
+        while (true) {
+            long arrival = theoreticalArrival.get();
+            long start = Math.max(arrival, now);
+            if (start - now > burstTolerance) return false;
+
+            if (theoreticalArrival.compareAndSet(arrival, start + cost)) return true;
+        }
+    }
+
+    /**
+     * Gives back permits taken by tryAcquire, when the request they paid for was rejected by another limit.
+     * The bucket never holds more than its capacity, so a refund cannot be used to exceed the burst.
+     *
+     * @param permits the number of permits to give back
+     */
+    public void refund(long permits) {
+        if (ticksPerPermit == 0) return;
+        theoreticalArrival.addAndGet(-ticksFor(permits));
+    }
+
+    /**
+     * Converts a number of permits to the time they take to refill, rounded to the nearest tick.
+     * The time is capped, so that huge requests on slow buckets cannot overflow the arrival time.
+     */
+    private long ticksFor(long permits) {
+        return (long) Math.min(Long.MAX_VALUE / 4, Math.rint(permits * ticksPerPermit));
+    }
+
+    /**
+     * Takes the given number of permits from both buckets, or from neither.
+     *
+     * @param first the first bucket to take the permits from
+     * @param second the second bucket to take the permits from
+     * @param permits the number of permits to take
+     * @return true if the permits were taken from both buckets, false if either of them is over its rate
+     */
+    public static boolean tryAcquireBoth(TokenBucket first, TokenBucket second, long permits) {
+        if (!first.tryAcquire(permits)) return false;
+        if (second.tryAcquire(permits)) return true;
+        first.refund(permits);
+        return false;
+    }
+}
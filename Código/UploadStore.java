@@ -0,0 +1,285 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Spools chunked uploads to disk, so that a large task is not held on the heap while it is received,
+ * and an interrupted transfer can be resumed from the last chunk the server accepted.
+ *
+ * Each upload is written to its own file, "upload-ID.part", one chunk at a time and only at the offset the
+ * server expects next, so a chunk that is sent twice (e.g. because its answer was lost) is simply ignored.
+ * Uploads that receive no chunk for the expiry period are deleted. The file is only opened while a chunk is written,
+ * and each user can have a limited number of uploads in progress, so idle uploads hold neither file descriptors
+ * nor an unbounded amount of disk.
+ *
+ * Like the ResultStore, the upload index only lives in memory: uploads do not survive a restart of the server.
+ */
+public class UploadStore {
+    private final Path directory;
+    private final long expiryNanos;
+    private final int maxUploadsPerUser;
+
+    private final Map<Long, Upload> uploads = new HashMap<>();
+    private final Map<String, Integer> uploadsPerUser = new HashMap<>();
+    private long nextUploadId = 1;
+    private final Lock storeLock = new ReentrantLock();
+    private final Thread sweeper;
+
+    /**
+     * Creates a store in the given directory, deleting any upload left by a previous run.
+     *
+     * @param directory the directory holding the upload files
+     * @param expiryMillis how long an upload is kept without receiving a chunk
+     * @param maxUploadsPerUser how many uploads each user can have in progress
+     * @throws IOException if the directory cannot be prepared
+     */
+    public UploadStore(Path directory, long expiryMillis, int maxUploadsPerUser) throws IOException {
+        this.directory = directory;
+        this.expiryNanos = TimeUnit.MILLISECONDS.toNanos(expiryMillis);
+        this.maxUploadsPerUser = maxUploadsPerUser;
+
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().startsWith("upload-")) Files.delete(file);
+            }
+        }
+
+        sweeper = new Thread(this::sweepPeriodically, "upload-store-sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    /**
+     * Starts a new upload, unless the user already has the maximum number of uploads in progress.
+     *
+     * @param user the owner of the upload
+     * @param size the total size of the upload
+     * @return the identifier of the upload, or -1 if the user has too many uploads in progress
+     * @throws IOException if the upload file cannot be created
+     */
+    public long begin(String user, long size) throws IOException {
+        long uploadId;
+        storeLock.lock();
+        try {
+            int inProgress = uploadsPerUser.getOrDefault(user, 0);
+            if (inProgress >= maxUploadsPerUser) return -1;
+            uploadsPerUser.put(user, inProgress + 1);
+            uploadId = nextUploadId++;
+        } finally {
+            storeLock.unlock();
+        }
+
+        Path file = directory.resolve(String.format("upload-%012d.part", uploadId));
+        try {
+            Files.createFile(file);
+        } catch (IOException e) {
+            storeLock.lock();
+            try {
+                removeFromUser(user);
+            } finally {
+                storeLock.unlock();
+            }
+            throw e;
+        }
+
+        storeLock.lock();
+        try {
+            uploads.put(uploadId, new Upload(user, size, file));
+        } finally {
+            storeLock.unlock();
+        }
+        return uploadId;
+    }
+
+    /**
+     * Returns the number of bytes received so far, which is the offset the next chunk must be sent at.
+     *
+     * @return the offset of the upload, or -1 if there is no such upload for this user
+     */
+    public long getOffset(String user, long uploadId) {
+        Upload upload = getUpload(user, uploadId);
+        if (upload == null) return -1;
+
+        upload.lock.lock();
+        try {
+            return upload.offset;
+        } finally {
+            upload.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total size of an upload.
+     *
+     * @return the size of the upload, or -1 if there is no such upload for this user
+     */
+    public long getSize(String user, long uploadId) {
+        Upload upload = getUpload(user, uploadId);
+        return upload == null ? -1 : upload.size;
+    }
+
+    /**
+     * Appends a chunk to an upload, if it starts at the upload's current offset and does not go past its size.
+     * Any other chunk is ignored, and the caller learns from the returned offset where to continue.
+     *
+     * @param user the owner of the upload
+     * @param uploadId the identifier of the upload
+     * @param offset the offset of the chunk
+     * @param chunk the data of the chunk
+     * @return the offset of the upload after the call, or -1 if there is no such upload for this user
+     * @throws IOException if the chunk cannot be written to the upload file
+     */
+    public long append(String user, long uploadId, long offset, byte[] chunk) throws IOException {
+        Upload upload = getUpload(user, uploadId);
+        if (upload == null) return -1;
+
+        upload.lock.lock();
+        try {
+            if (upload.removed) return -1;
+            if (offset != upload.offset || offset + chunk.length > upload.size) return upload.offset;
+
+            try (FileChannel channel = FileChannel.open(upload.file, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, offset + buffer.position());
+                }
+            }
+            upload.offset += chunk.length;
+            upload.lastChunk = System.nanoTime();
+            return upload.offset;
+        } finally {
+            upload.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a complete upload from the store. The caller becomes the owner of the returned file,
+     * and has to delete it.
+     *
+     * @return the file holding the upload, or null if there is no such complete upload for this user
+     */
+    public Path finish(String user, long uploadId) {
+        Upload upload;
+        storeLock.lock();
+        try {
+            upload = uploads.get(uploadId);
+            if (upload == null || !upload.user.equals(user)) return null;
+
+            upload.lock.lock();
+            try {
+                if (upload.offset != upload.size) return null;
+                uploads.remove(uploadId);
+                removeFromUser(user);
+                upload.removed = true;
+            } finally {
+                upload.lock.unlock();
+            }
+        } finally {
+            storeLock.unlock();
+        }
+        return upload.file;
+    }
+
+    /**
+     * Stops the sweeper thread. Uploads left on disk are deleted by the next store created in the directory.
+     */
+    public void close() {
+        sweeper.interrupt();
+    }
+
+    /**
+     * Counts an upload of the user as no longer in progress. Must be called holding the store lock.
+     */
+    private void removeFromUser(String user) {
+        uploadsPerUser.computeIfPresent(user, (owner, inProgress) -> inProgress > 1 ? inProgress - 1 : null);
+    }
+
+    private Upload getUpload(String user, long uploadId) {
+        storeLock.lock();
+        try {
+            Upload upload = uploads.get(uploadId);
+            return upload == null || !upload.user.equals(user) ? null : upload;
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the uploads that received no chunk for the expiry period.
+     */
+    private void sweep() {
+        List<Upload> expired = new ArrayList<>();
+        long now = System.nanoTime();
+
+        storeLock.lock();
+        try {
+            Iterator<Upload> iterator = uploads.values().iterator();
+            while (iterator.hasNext()) {
+                Upload upload = iterator.next();
+                if (now - upload.lastChunk < expiryNanos) continue;
+
+                iterator.remove();
+                removeFromUser(upload.user);
+                expired.add(upload);
+            }
+        } finally {
+            storeLock.unlock();
+        }
+
+        for (Upload upload : expired) {
+            upload.lock.lock();
+            try {
+                upload.removed = true;
+                Files.deleteIfExists(upload.file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                upload.lock.unlock();
+            }
+        }
+    }
+
+    private void sweepPeriodically() {
+        long period = Math.max(TimeUnit.SECONDS.toMillis(1), TimeUnit.NANOSECONDS.toMillis(expiryNanos) / 4);
+        while (true) {
+            try {
+                Thread.sleep(period);
+            } catch (InterruptedException e) {
+                return;
+            }
+            sweep();
+        }
+    }
+
+    /**
+     * An upload in progress and the file it is spooled to.
+     */
+    private static class Upload {
+        private final String user;
+        private final long size;
+        private final Path file;
+        private final Lock lock = new ReentrantLock();
+        private long offset = 0;
+        private boolean removed = false;
+        private volatile long lastChunk = System.nanoTime();
+
+        Upload(String user, long size, Path file) {
+            this.user = user;
+            this.size = size;
+            this.file = file;
+        }
+    }
+}
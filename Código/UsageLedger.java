@@ -0,0 +1,343 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records one usage record per executed job, for chargeback, in an append-only log of memory-mapped
+ * segment files with fixed-width records:
+ * <pre>
+ *   long timestamp (epoch millis), int userId, int outcome (SUCCESS or FAILED),
+ *   long inputBytes, long outputBytes, long queueWaitNanos, long cpuNanos, long wallNanos, long reserved
+ * </pre>
+ * User IDs are resolved through the "users.log" file written next to the segments, one {@code id name} line per
+ * user with the name URL-encoded. The file is read back on startup, so a user keeps its ID across restarts and
+ * new users never reuse the ID of an older one. A slot with a zero timestamp was never written: the last
+ * segment of a previous run is usually not full.
+ *
+ * Appending takes a slot with a single atomic increment and writes it with absolute puts into the mapping,
+ * without allocating or forcing the data to disk; the page cache writes it back. Only rolling over to a new
+ * segment takes a lock. A full segment, and the last one when the ledger is closed, is forced to disk and
+ * unmapped once the records being written to it are complete. Each user also keeps running totals and a
+ * rolling one-hour window of per-minute buckets.
+ */
+public class UsageLedger {
+    public static final int SUCCESS = 0;
+    public static final int FAILED = 1;
+    public static final int RECORD_SIZE = 64;
+
+    private static final int WINDOW_MINUTES = 60;
+    private static final int JOBS = 0;
+    private static final int FAILED_JOBS = 1;
+    private static final int INPUT_BYTES = 2;
+    private static final int OUTPUT_BYTES = 3;
+    private static final int QUEUE_WAIT = 4;
+    private static final int CPU = 5;
+    private static final int FIELDS = 6;
+
+    private final Path directory;
+    private final int recordsPerSegment;
+    private final Map<String, UserUsage> users = new ConcurrentHashMap<>();
+    private final AtomicInteger nextUserId = new AtomicInteger();
+    private final Writer userDirectory;
+
+    private volatile Segment activeSegment;
+    private long nextSegmentId = 1;
+    private boolean closed = false;
+    private final Lock ledgerLock = new ReentrantLock();
+
+    /**
+     * Opens a ledger in the given directory. Segments of previous runs are kept, and new segments follow them.
+     *
+     * @param directory the directory holding the segment files
+     * @param recordsPerSegment the number of records in each segment file (a segment is at most 2 GiB)
+     * @throws IOException if the directory, the user directory or the first segment cannot be read or created
+     */
+    public UsageLedger(Path directory, int recordsPerSegment) throws IOException {
+        if (recordsPerSegment <= 0 || (long) recordsPerSegment * RECORD_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid number of records per segment: " + recordsPerSegment);
+        }
+        this.directory = directory;
+        this.recordsPerSegment = recordsPerSegment;
+
+        Files.createDirectories(directory);
+        while (Files.exists(segmentFile(nextSegmentId))) {
+            nextSegmentId++;
+        }
+        Path userFile = directory.resolve("users.log");
+        if (Files.exists(userFile)) loadUsers(userFile);
+        userDirectory = Files.newBufferedWriter(userFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        activeSegment = createSegment();
+    }
+
+    /**
+     * Appends the usage record of a job and updates the user's aggregates.
+     *
+     * @param user the owner of the job
+     * @param inputBytes the size of the job's input
+     * @param outputBytes the size of the job's result
+     * @param queueWaitNanos how long the job waited between admission and execution
+     * @param cpuNanos the CPU time spent executing the job
+     * @param wallNanos the wall-clock time spent executing the job
+     * @param outcome SUCCESS or FAILED
+     */
+    public void record(String user, long inputBytes, long outputBytes, long queueWaitNanos, long cpuNanos, long wallNanos, int outcome) {
+        UserUsage usage = usageOf(user);
+        long now = System.currentTimeMillis();
+
+        while (true) {
+            Segment segment = activeSegment;
+            long slot = segment.nextSlot.getAndIncrement();
+            if (slot < recordsPerSegment) {
+                int offset = (int) (slot * RECORD_SIZE);
+                MappedByteBuffer buffer = segment.buffer;
+                buffer.putLong(offset, now);
+                buffer.putInt(offset + 8, usage.id);
+                buffer.putInt(offset + 12, outcome);
+                buffer.putLong(offset + 16, inputBytes);
+                buffer.putLong(offset + 24, outputBytes);
+                buffer.putLong(offset + 32, queueWaitNanos);
+                buffer.putLong(offset + 40, cpuNanos);
+                buffer.putLong(offset + 48, wallNanos);
+                segment.written.increment();
+                break;
+            }
+            roll(segment);
+        }
+
+        usage.add(now / 60_000, outcome == FAILED ? 1 : 0, inputBytes, outputBytes, queueWaitNanos, cpuNanos);
+    }
+
+    /**
+     * Returns the total usage of a user since the server started.
+     */
+    public UsageSummary getTotalUsage(String user) {
+        UserUsage usage = users.get(user);
+        if (usage == null) return new UsageSummary(0, 0, 0, 0, 0, 0);
+        return usage.summary(usage.totals);
+    }
+
+    /**
+     * Returns the usage of a user over the last hour.
+     */
+    public UsageSummary getRecentUsage(String user) {
+        UserUsage usage = users.get(user);
+        if (usage == null) return new UsageSummary(0, 0, 0, 0, 0, 0);
+        return usage.summary(usage.window(System.currentTimeMillis() / 60_000));
+    }
+
+    private UserUsage usageOf(String user) {
+        UserUsage usage = users.get(user);
+        if (usage != null) return usage;
+
+        ledgerLock.lock();
+        try {
+            usage = users.get(user);
+            if (usage == null) {
+                usage = new UserUsage(nextUserId.getAndIncrement());
+                userDirectory.write(usage.id + " " + URLEncoder.encode(user, StandardCharsets.UTF_8) + "\n");
+                userDirectory.flush();
+                users.put(user, usage);
+            }
+            return usage;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not update the usage ledger user directory", e);
+        } finally {
+            ledgerLock.unlock();
+        }
+    }
+
+    /**
+     * Restores the IDs of the users recorded by previous runs, so that new users get IDs that were never used.
+     */
+    private void loadUsers(Path userFile) throws IOException {
+        int maxId = -1;
+        for (String line : Files.readAllLines(userFile, StandardCharsets.UTF_8)) {
+            int space = line.indexOf(' ');
+            try {
+                int id = Integer.parseInt(line.substring(0, Math.max(space, 0)));
+                users.put(URLDecoder.decode(line.substring(space + 1), StandardCharsets.UTF_8), new UserUsage(id));
+                maxId = Math.max(maxId, id);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Skipping malformed usage ledger user entry: " + line);
+            }
+        }
+        nextUserId.set(maxId + 1);
+    }
+
+    /**
+     * Forces the records to disk, closes the user directory and unmaps the last segment.
+     * Records of jobs that finish afterwards are rejected with an IllegalStateException.
+     *
+     * @throws IOException if the user directory cannot be closed
+     */
+    public void close() throws IOException {
+        ledgerLock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            Segment last = activeSegment;
+            long taken = last.nextSlot.getAndAdd(recordsPerSegment);
+            retire(last, Math.min(taken, recordsPerSegment));
+            userDirectory.close();
+        } finally {
+            ledgerLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces a full segment, unless another thread already did, and retires it.
+     */
+    private void roll(Segment full) {
+        ledgerLock.lock();
+        try {
+            if (closed) throw new IllegalStateException("The usage ledger is closed");
+            if (activeSegment != full) return;
+            activeSegment = createSegment();
+            retire(full, recordsPerSegment);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not create a usage ledger segment", e);
+        } finally {
+            ledgerLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the records still being written to a segment that takes no more records, then forces it
+     * to disk and releases its mapping.
+     *
+     * @param segment the segment to retire
+     * @param taken the number of slots that were handed out in the segment
+     */
+    private static void retire(Segment segment, long taken) {
+        while (segment.written.sum() < taken) {
+            Thread.onSpinWait();
+        }
+        segment.buffer.force();
+        unmap(segment.buffer);
+    }
+
+    /**
+     * Releases a mapping right away instead of when it is garbage collected.
+     * Falls back to leaving it to the GC if the JDK does not allow it.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // The mapping is released when the buffer is garbage collected.
+        }
+    }
+
+    private Segment createSegment() throws IOException {
+        Path file = segmentFile(nextSegmentId++);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) recordsPerSegment * RECORD_SIZE));
+        }
+    }
+
+    private Path segmentFile(long segmentId) {
+        return directory.resolve(String.format("usage-%012d.log", segmentId));
+    }
+
+    /**
+     * A mapped segment file, the next free record slot in it and the number of records written to it.
+     */
+    private static class Segment {
+        private final MappedByteBuffer buffer;
+        private final AtomicLong nextSlot = new AtomicLong();
+        private final LongAdder written = new LongAdder();
+
+        Segment(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * The aggregates of a user: running totals, and per-minute buckets covering the last hour.
+     * A bucket is reset when it is first reused for a new minute, so records racing with the
+     * reset may be lost from the window (but never from the totals or the log).
+     */
+    private static class UserUsage {
+        private final int id;
+        private final LongAdder[] totals = new LongAdder[FIELDS];
+        private final AtomicLongArray bucketMinutes = new AtomicLongArray(WINDOW_MINUTES);
+        private final AtomicLongArray buckets = new AtomicLongArray(WINDOW_MINUTES * FIELDS);
+
+        UserUsage(int id) {
+            this.id = id;
+            for (int i = 0; i < FIELDS; i++) {
+                totals[i] = new LongAdder();
+            }
+        }
+
+        void add(long minute, long failed, long inputBytes, long outputBytes, long queueWaitNanos, long cpuNanos) {
+            totals[JOBS].increment();
+            totals[FAILED_JOBS].add(failed);
+            totals[INPUT_BYTES].add(inputBytes);
+            totals[OUTPUT_BYTES].add(outputBytes);
+            totals[QUEUE_WAIT].add(queueWaitNanos);
+            totals[CPU].add(cpuNanos);
+
+            int bucket = (int) (minute % WINDOW_MINUTES);
+            long bucketMinute = bucketMinutes.get(bucket);
+            if (bucketMinute != minute && bucketMinutes.compareAndSet(bucket, bucketMinute, minute)) {
+                for (int i = 0; i < FIELDS; i++) {
+                    buckets.set(bucket * FIELDS + i, 0);
+                }
+            }
+
+            int base = bucket * FIELDS;
+            buckets.incrementAndGet(base + JOBS);
+            buckets.addAndGet(base + FAILED_JOBS, failed);
+            buckets.addAndGet(base + INPUT_BYTES, inputBytes);
+            buckets.addAndGet(base + OUTPUT_BYTES, outputBytes);
+            buckets.addAndGet(base + QUEUE_WAIT, queueWaitNanos);
+            buckets.addAndGet(base + CPU, cpuNanos);
+        }
+
+        long[] window(long currentMinute) {
+            long[] sums = new long[FIELDS];
+            for (int bucket = 0; bucket < WINDOW_MINUTES; bucket++) {
+                if (currentMinute - bucketMinutes.get(bucket) >= WINDOW_MINUTES) continue;
+                for (int i = 0; i < FIELDS; i++) {
+                    sums[i] += buckets.get(bucket * FIELDS + i);
+                }
+            }
+            return sums;
+        }
+
+        UsageSummary summary(LongAdder[] values) {
+            long[] sums = new long[FIELDS];
+            for (int i = 0; i < FIELDS; i++) {
+                sums[i] = values[i].sum();
+            }
+            return summary(sums);
+        }
+
+        UsageSummary summary(long[] sums) {
+            return new UsageSummary(sums[JOBS], sums[FAILED_JOBS], sums[INPUT_BYTES], sums[OUTPUT_BYTES],
+                    sums[QUEUE_WAIT] / 1_000_000, sums[CPU] / 1_000_000);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Represents the resource usage of a user, as recorded in the server's usage ledger.
+ */
+class UsageSummary {
+    public long jobs;
+    public long failedJobs;
+    public long inputBytes;
+    public long outputBytes;
+    public long queueWaitMillis;
+    public long cpuMillis;
+
+    /**
+     * Constructs a UsageSummary object.
+     * 
+     * @param jobs the number of jobs executed
+     * @param failedJobs how many of those jobs failed
+     * @param inputBytes the total size of the jobs' inputs
+     * @param outputBytes the total size of the jobs' results
+     * @param queueWaitMillis the total time the jobs waited before executing
+     * @param cpuMillis the total CPU time spent executing the jobs
+     */
+    public UsageSummary(long jobs, long failedJobs, long inputBytes, long outputBytes, long queueWaitMillis, long cpuMillis) {
+        this.jobs = jobs;
+        this.failedJobs = failedJobs;
+        this.inputBytes = inputBytes;
+        this.outputBytes = outputBytes;
+        this.queueWaitMillis = queueWaitMillis;
+        this.cpuMillis = cpuMillis;
+    }
+}
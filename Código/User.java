@@ -1,21 +1,28 @@
 import java.util.Objects;
 
 /**
- * Represents a user with a username and password.
+ * Represents a user with a username, a salted password hash and the rate limits applied to its requests.
  */
 public class User {
     private String username;
-    private String password;
+    private byte[] salt;
+    private int iterations;
+    private byte[] passwordHash;
+
+    private volatile RateLimits rateLimits = new RateLimits(0, 0, 0, 0);
 
     /**
      * Constructs a User object with the specified username and password.
+     * Only a salted hash of the password is kept, so this constructor is slow.
      *
      * @param username the username of the user
      * @param password the password of the user
      */
     public User(String username, String password) {
         this.username = username;
-        this.password = password;
+        this.salt = PasswordHasher.newSalt();
+        this.iterations = PasswordHasher.DEFAULT_ITERATIONS;
+        this.passwordHash = PasswordHasher.hash(password, salt, iterations);
     }
 
     /**
@@ -28,12 +35,103 @@ public class User {
     }
 
     /**
-     * Returns the password of the user.
+     * Checks if the given password is the password of the user.
+     * The check derives the password hash again, so it is slow.
+     *
+     * @param password the password to check
+     * @return true if the password matches, false otherwise
+     */
+    public boolean verifyPassword(String password) {
+        return PasswordHasher.verify(password, salt, iterations, passwordHash);
+    }
+
+    /**
+     * Sets the rate limits of the user. A non-positive rate disables the corresponding limit.
+     * The limits are shared by every connection of the user, and replaced all at once, so a connection never
+     * sees a new rate paired with an old bucket.
+     *
+     * @param requestsPerSecond the sustained number of requests per second
+     * @param requestBurst the number of requests that may be sent at once
+     * @param uploadBytesPerSecond the sustained number of uploaded task bytes per second
+     * @param uploadBurst the number of task bytes that may be uploaded at once
+     */
+    public void setRateLimits(double requestsPerSecond, long requestBurst, double uploadBytesPerSecond, long uploadBurst) {
+        this.rateLimits = new RateLimits(requestsPerSecond, requestBurst, uploadBytesPerSecond, uploadBurst);
+    }
+
+    /**
+     * Returns the sustained number of requests per second allowed for the user.
+     *
+     * @return the sustained number of requests per second allowed for the user
+     */
+    public double getRequestsPerSecond() {
+        return rateLimits.requestsPerSecond;
+    }
+
+    /**
+     * Returns the number of requests the user may send at once.
+     *
+     * @return the number of requests the user may send at once
+     */
+    public long getRequestBurst() {
+        return rateLimits.requestBurst;
+    }
+
+    /**
+     * Returns the sustained number of task bytes per second the user may upload.
      *
-     * @return the password of the user
+     * @return the sustained number of task bytes per second the user may upload
      */
-    public String getPassword() {
-        return password;
+    public double getUploadBytesPerSecond() {
+        return rateLimits.uploadBytesPerSecond;
+    }
+
+    /**
+     * Returns the number of task bytes the user may upload at once.
+     *
+     * @return the number of task bytes the user may upload at once
+     */
+    public long getUploadBurst() {
+        return rateLimits.uploadBurst;
+    }
+
+    /**
+     * Returns the bucket limiting the request rate of the user.
+     *
+     * @return the request rate limiter of the user
+     */
+    public TokenBucket getRequestLimiter() {
+        return rateLimits.requestLimiter;
+    }
+
+    /**
+     * Returns the bucket limiting the upload rate of the user.
+     *
+     * @return the upload rate limiter of the user
+     */
+    public TokenBucket getUploadLimiter() {
+        return rateLimits.uploadLimiter;
+    }
+
+    /**
+     * The rate limits of a user and the buckets enforcing them, published together.
+     */
+    private static final class RateLimits {
+        private final double requestsPerSecond;
+        private final long requestBurst;
+        private final double uploadBytesPerSecond;
+        private final long uploadBurst;
+        private final TokenBucket requestLimiter;
+        private final TokenBucket uploadLimiter;
+
+        RateLimits(double requestsPerSecond, long requestBurst, double uploadBytesPerSecond, long uploadBurst) {
+            this.requestsPerSecond = requestsPerSecond;
+            this.requestBurst = requestBurst;
+            this.uploadBytesPerSecond = uploadBytesPerSecond;
+            this.uploadBurst = uploadBurst;
+            this.requestLimiter = new TokenBucket(requestsPerSecond, requestBurst);
+            this.uploadLimiter = new TokenBucket(uploadBytesPerSecond, uploadBurst);
+        }
     }
 
     /**
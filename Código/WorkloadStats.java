@@ -0,0 +1,124 @@
+/**
+ * Running aggregates of the server workload, used to predict how long a job of a given size
+ * would wait for admission and take to complete.
+ *
+ * Rates are exponentially decayed counters, so every update and estimate is O(1).
+ * Execution time is modelled as a fixed cost per job plus a cost per input byte, fitted by least squares
+ * over decayed sums of the recent jobs, so neither a burst of tiny jobs nor one huge job skews the estimate.
+ * This class is not thread-safe: the CentralServer only uses it while holding its status lock.
+ */
+public class WorkloadStats {
+    private static final double DECAY_SECONDS = 10.0;
+    private static final double JOB_DECAY = 0.98;
+    private static final double MIN_DRAIN_SHARE = 0.1;
+
+    private double jobs = 0;
+    private double sumBytes = 0;
+    private double sumNanos = 0;
+    private double sumBytesSquared = 0;
+    private double sumBytesNanos = 0;
+    private double admittedBytes = 0;
+    private double drainedBytes = 0;
+    private long lastDecay = System.nanoTime();
+
+    /**
+     * Records a job admitted to the server.
+     *
+     * @param bytes the size of the job's input
+     */
+    public void recordAdmission(long bytes) {
+        decay();
+        admittedBytes += bytes;
+    }
+
+    /**
+     * Records a job that finished executing and released its memory.
+     *
+     * @param bytes the size of the job's input
+     * @param executionNanos how long the job took to execute
+     */
+    public void recordCompletion(long bytes, long executionNanos) {
+        decay();
+        drainedBytes += bytes;
+
+        jobs = jobs * JOB_DECAY + 1;
+        sumBytes = sumBytes * JOB_DECAY + bytes;
+        sumNanos = sumNanos * JOB_DECAY + executionNanos;
+        sumBytesSquared = sumBytesSquared * JOB_DECAY + (double) bytes * bytes;
+        sumBytesNanos = sumBytesNanos * JOB_DECAY + (double) bytes * executionNanos;
+    }
+
+    /**
+     * Returns how many recent jobs the execution time estimates are based on, decayed like the sums.
+     */
+    public double recentJobs() {
+        return jobs;
+    }
+
+    /**
+     * Returns the rate at which job input bytes are being admitted, in bytes per second.
+     */
+    public double admissionRate() {
+        decay();
+        return admittedBytes / DECAY_SECONDS;
+    }
+
+    /**
+     * Returns the rate at which memory is being released by finished jobs, in bytes per second.
+     */
+    public double drainRate() {
+        decay();
+        return drainedBytes / DECAY_SECONDS;
+    }
+
+    /**
+     * Estimates how long a job would wait until enough memory is available to admit it.
+     * Memory released by finished jobs is shared with the jobs still arriving, so only the
+     * surplus of the drain rate over the admission rate counts (with a floor, so the
+     * estimate stays finite under sustained load).
+     *
+     * @param payloadSize the size of the job's input
+     * @param availableMemory the memory currently available
+     * @param totalMemory the memory budget of the server
+     * @return the estimated wait in nanoseconds, or -1 if the job can never be admitted or there is no history yet
+     */
+    public long estimateWaitNanos(long payloadSize, long availableMemory, long totalMemory) {
+        if (payloadSize > totalMemory) return -1;
+        if (payloadSize <= availableMemory) return 0;
+
+        double drainRate = drainRate();
+        if (drainRate <= 0) return jobs == 0 ? -1 : (long) (sumNanos / jobs);
+
+        double freeRate = Math.max(drainRate - admissionRate(), drainRate * MIN_DRAIN_SHARE);
+        return (long) ((payloadSize - availableMemory) / freeRate * 1_000_000_000L);
+    }
+
+    /**
+     * Estimates how long a job would take to execute once admitted: the fixed cost of a job plus
+     * the cost per byte times its size. Until jobs of different sizes were seen, the cost per byte
+     * is unknown and the estimate is the average execution time.
+     *
+     * @param payloadSize the size of the job's input
+     * @return the estimated execution time in nanoseconds, or -1 if there is no history yet
+     */
+    public long estimateExecutionNanos(long payloadSize) {
+        if (jobs == 0) return -1;
+
+        double meanBytes = sumBytes / jobs;
+        double meanNanos = sumNanos / jobs;
+        double bytesVariance = sumBytesSquared - sumBytes * meanBytes;
+        double nanosPerByte = bytesVariance > 1e-9 * sumBytesSquared
+                ? Math.max(0, (sumBytesNanos - sumBytes * meanNanos) / bytesVariance)
+                : 0;
+        double fixedNanos = Math.max(0, meanNanos - nanosPerByte * meanBytes);
+        return (long) (fixedNanos + nanosPerByte * payloadSize);
+    }
+
+    private void decay() {
+        long now = System.nanoTime();
+        double factor = Math.exp(-(now - lastDecay) / (DECAY_SECONDS * 1_000_000_000L));
+        admittedBytes *= factor;
+        drainedBytes *= factor;
+        lastDecay = now;
+    }
+}